@@ -0,0 +1,272 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.regex.Pattern;
+
+// 微基准：覆盖报文编解码、数据块反转、文件分块与合并以及RTT统计，
+// 每项报告吞吐量和每次操作分配的内存，可输出JSON以便比较不同版本的结果
+public class microbench {
+    // 当前线程累计分配的字节数，相当于JMH gc profiler中的alloc.rate.norm
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static final List<Benchmark> benchmarks = new ArrayList<>();
+    // 汇总各基准的返回值，防止JIT把被测代码当作死代码消除
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        Pattern filter = Pattern.compile(".*");
+        String jsonFile = null;
+        long warmupMillis = 1000;
+        long measureMillis = 2000;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "--filter": filter = Pattern.compile(kv[1]); break;
+                case "--json": jsonFile = kv[1]; break;
+                case "--warmup": warmupMillis = Long.parseLong(kv[1]); break;
+                case "--time": measureMillis = Long.parseLong(kv[1]); break;
+                default:
+                    System.err.println("Usage: java microbench [--filter=REGEX] [--json=FILE] [--warmup=MS] [--time=MS]");
+                    System.exit(1);
+            }
+        }
+
+        registerPacketBenchmarks();
+        registerReverseBenchmarks();
+        registerFileBenchmarks();
+        registerWindowBenchmarks();
+        registerIntervalBenchmarks();
+        registerTimerBenchmarks();
+        registerRttBenchmarks();
+
+        System.out.printf("%-52s %14s %12s %12s %14s%n", "benchmark", "ops/s", "MB/s", "B/op", "alloc MB/s");
+        List<String> json = new ArrayList<>();
+        for (Benchmark benchmark : benchmarks) {
+            if (!filter.matcher(benchmark.name + " " + benchmark.param).find()) {
+                continue;
+            }
+            benchmark.run(warmupMillis, measureMillis);
+            System.out.printf("%-52s %14.1f %12.1f %12.1f %14.1f%n", benchmark.name + " " + benchmark.param,
+                    benchmark.opsPerSecond, benchmark.opsPerSecond * benchmark.bytesPerOp / 1e6, benchmark.allocPerOp,
+                    benchmark.opsPerSecond * benchmark.allocPerOp / 1e6);
+            json.add(benchmark.toJson());
+        }
+
+        if (jsonFile != null) {
+            Files.write(Paths.get(jsonFile), ("[\n" + String.join(",\n", json) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+            System.out.println("Results saved as: " + jsonFile);
+        }
+        System.out.println("(" + (sink & 1) + ")");
+    }
+
+    // 可靠UDP报文：默认40~80字节的数据块，以及接近以太网MTU的负载
+    private static void registerPacketBenchmarks() {
+        for (int size : new int[]{64, 1400}) {
+            byte[] payload = randomBytes(size);
+            Packet packet = new Packet(Packet.DATA, 12345, 0, payload);
+            byte[] serialized = packet.serialize();
+            add("Packet.serialize", "payload=" + size, serialized.length, () -> packet.serialize().length);
+            add("Packet.deserialize", "payload=" + size, serialized.length,
+                    () -> Packet.deserialize(serialized).getLength());
+
+            // 享元编解码：在复用的缓冲区中编码，在接收缓冲区上直接解析
+            Packet encoder = Packet.allocate(size, false);
+            add("Packet.encode", "payload=" + size, serialized.length,
+                    () -> encoder.set(Packet.DATA, 12345, 0, 0L).setPayload(payload, 0, size).frame().limit());
+            ByteBuffer received = ByteBuffer.wrap(serialized);
+            Packet view = Packet.allocate(0, false);
+            add("Packet.view", "payload=" + size, serialized.length,
+                    () -> view.view(received).getSeqNumber() + view.getLength());
+        }
+    }
+
+    // ClientHandler对每个数据块的原地反转
+    private static void registerReverseBenchmarks() {
+        for (int size : new int[]{64, 1024, 65536}) {
+            byte[] block = randomBytes(size);
+            add("reversetcpserver.reverse", "size=" + size, size, () -> {
+                reversetcpserver.reverse(block, 0, block.length);
+                return block[0];
+            });
+        }
+    }
+
+    // 旧客户端整文件读入内存后的分块与合并，1MB文本，块长10~500字节
+    private static void registerFileBenchmarks() {
+        String content = new String(randomBytes(1 << 20), StandardCharsets.US_ASCII);
+        List<String> blocks = reversetcpclient.splitFile(content, 10, 500);
+        add("reversetcpclient.splitFile", "size=1MB", content.length(),
+                () -> reversetcpclient.splitFile(content, 10, 500).size());
+        add("reversetcpclient.combineReversedBlocks", "size=1MB", content.length(),
+                () -> reversetcpclient.combineReversedBlocks(blocks).length());
+    }
+
+    // 发送窗口：发出一窗数据包后被一个累积确认全部确认，默认窗口约十个包，以及大窗口
+    private static void registerWindowBenchmarks() {
+        for (int count : new int[]{16, 1024}) {
+            SendWindow window = new SendWindow(count);
+            add("SendWindow.add+ack", "packets=" + count, 0, () -> {
+                for (int i = 0; i < count; i++) {
+                    window.add(i * 64, 64, i + 1, 0L, null);
+                }
+                int acked = 0;
+                for (int slot = window.oldest(); slot >= 0 && window.end(slot) <= count * 64; slot = window.oldest()) {
+                    window.removeOldest();
+                    acked++;
+                }
+                return acked;
+            });
+        }
+    }
+
+    // 接收方的乱序记录：隔一个包丢一个时先收到其余的包，再按顺序补齐空洞并推进
+    private static void registerIntervalBenchmarks() {
+        for (int count : new int[]{16, 1024}) {
+            IntervalSet received = new IntervalSet();
+            add("IntervalSet.add+advance", "packets=" + count, 0, () -> {
+                for (int i = 1; i < count; i += 2) {
+                    received.add(i * 64, i * 64 + 64);
+                }
+                long expected = 0;
+                for (int i = 0; i < count; i += 2) {
+                    expected = received.advance(expected + 64);
+                }
+                return (int) expected;
+            });
+        }
+    }
+
+    // 重传定时器：每个包启动一个定时器，确认时取消；以及全部到期后一次推进触发
+    private static void registerTimerBenchmarks() {
+        for (int count : new int[]{16, 1024}) {
+            TimerWheel wheel = new TimerWheel(count, 512, 1, 0);
+            add("TimerWheel.schedule+cancel", "timers=" + count, 0, () -> {
+                for (int i = 0; i < count; i++) {
+                    wheel.schedule(i, 300 + i);
+                }
+                for (int i = 0; i < count; i++) {
+                    wheel.cancel(i);
+                }
+                return count;
+            });
+            TimerWheel expiring = new TimerWheel(count, 512, 1, 0);
+            long[] now = {0};
+            int[] fired = {0};
+            IntConsumer onExpired = id -> fired[0]++;
+            add("TimerWheel.schedule+advance", "timers=" + count, 0, () -> {
+                for (int i = 0; i < count; i++) {
+                    expiring.schedule(i, now[0] + 1 + (i & 255));
+                }
+                now[0] += 256;
+                expiring.advance(now[0], onExpired);
+                return fired[0];
+            });
+        }
+    }
+
+    // 一次传输的RTT样本：默认数据量约四十个报文，以及长时间传输的十万个样本
+    private static void registerRttBenchmarks() {
+        for (int count : new int[]{40, 100000}) {
+            Random random = new Random(1);
+            List<Long> samples = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                samples.add(1000L + random.nextInt(300000));
+            }
+            add("RTTStatistics.calculateMean", "samples=" + count, 0,
+                    () -> (int) RTTStatistics.calculateMean(samples));
+            add("RTTStatistics.calculateStdDev", "samples=" + count, 0,
+                    () -> (int) RTTStatistics.calculateStdDev(samples));
+        }
+
+        // 流式统计：每个样本的记录开销，以及结束时的一次汇总
+        RTTStatistics stats = new RTTStatistics();
+        Random random = new Random(1);
+        long[] values = new long[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1_000_000L + random.nextInt(300_000_000);
+        }
+        int[] next = {0};
+        add("RTTStatistics.record", "", 0, () -> {
+            long value = values[next[0]++ & (values.length - 1)];
+            stats.record(value);
+            return (int) value;
+        });
+        add("RTTStatistics.summary", "", 0,
+                () -> (int) (stats.stdDev() + stats.percentile(50) + stats.percentile(99.9)));
+    }
+
+    // 可打印ASCII字符，与客户端处理的文本文件一致
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (' ' + random.nextInt(95));
+        }
+        return data;
+    }
+
+    private static void add(String name, String param, long bytesPerOp, IntSupplier body) {
+        benchmarks.add(new Benchmark(name, param, bytesPerOp, body));
+    }
+
+    private static class Benchmark {
+        final String name;
+        final String param;
+        final long bytesPerOp;
+        final IntSupplier body;
+        double opsPerSecond;
+        double allocPerOp;
+
+        public Benchmark(String name, String param, long bytesPerOp, IntSupplier body) {
+            this.name = name;
+            this.param = param;
+            this.bytesPerOp = bytesPerOp;
+            this.body = body;
+        }
+
+        public void run(long warmupMillis, long measureMillis) {
+            // 预热，让JIT完成编译
+            long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000;
+            while (System.nanoTime() < warmupEnd) {
+                sink += body.getAsInt();
+            }
+
+            // 按批调用，减少读取时钟的开销；批大小随操作耗时自适应
+            long threadId = Thread.currentThread().getId();
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long operations = 0;
+            int batch = 1;
+            long start = System.nanoTime();
+            long end = start + measureMillis * 1_000_000;
+            long now;
+            do {
+                for (int i = 0; i < batch; i++) {
+                    sink += body.getAsInt();
+                }
+                operations += batch;
+                now = System.nanoTime();
+                if (batch < 1 << 16 && now - start < (end - start) / 100) {
+                    batch *= 2;
+                }
+            } while (now < end);
+            long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+            opsPerSecond = operations / ((now - start) / 1e9);
+            allocPerOp = (double) allocated / operations;
+        }
+
+        public String toJson() {
+            return String.format(Locale.ROOT,
+                    "  {\"benchmark\": \"%s\", \"params\": \"%s\", \"opsPerSecond\": %.1f, \"bytesPerSecond\": %.1f, "
+                            + "\"allocBytesPerOp\": %.1f, \"allocBytesPerSecond\": %.1f}",
+                    name, param, opsPerSecond, opsPerSecond * bytesPerOp, allocPerOp, opsPerSecond * allocPerOp);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,144 @@
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 反转协议的压缩编解码器，客户端和服务器每条连接各一个。
+// 每个方向在整个连接上使用同一个压缩流，前面报文的内容充当后续报文的字典；
+// 每个报文以SYNC_FLUSH结束，接收方收到后即可完整解压，不必等待后续数据
+public class DeflateCodec {
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+    private final Inflater inflater = new Inflater(true);
+    private final byte[] scratch = new byte[1];
+    private byte[] output = new byte[INITIAL_OUTPUT_SIZE];
+    private int outputLength;
+
+    public static final int INITIAL_OUTPUT_SIZE = 8192;
+
+    public final Stats stats = new Stats();
+
+    // 开始压缩一个新报文
+    public void reset() {
+        outputLength = 0;
+    }
+
+    // 追加要压缩的数据，一个报文可以分多次追加
+    public void deflate(byte[] src, int offset, int length) {
+        long startTime = System.nanoTime();
+        deflater.setInput(src, offset, length);
+        while (!deflater.needsInput()) {
+            growIfFull();
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength, Deflater.NO_FLUSH);
+        }
+        stats.rawOut += length;
+        stats.deflateNanos += System.nanoTime() - startTime;
+    }
+
+    // 结束当前报文，返回压缩后的长度，压缩结果位于buffer()中
+    public int flush() {
+        long startTime = System.nanoTime();
+        int space;
+        int n;
+        do {
+            growIfFull();
+            space = output.length - outputLength;
+            n = deflater.deflate(output, outputLength, space, Deflater.SYNC_FLUSH);
+            outputLength += n;
+        } while (n == space);
+        stats.encodedOut += outputLength;
+        stats.deflateNanos += System.nanoTime() - startTime;
+        return outputLength;
+    }
+
+    public byte[] buffer() {
+        return output;
+    }
+
+    public int capacity() {
+        return output.length;
+    }
+
+    // 压缩length字节的报文最多产生的输出：不可压缩的数据退化为存储块，
+    // 每块只有几个字节的额外开销，末尾再加同步标记
+    public static int maxDeflatedLength(int length) {
+        return length + (length >> 8) + 64;
+    }
+
+    // 在reset()之后把输出缓冲区扩大到至少size字节。服务器压缩前按maxDeflatedLength预留，
+    // 并先计入连接的内存预算，这样压缩过程中缓冲区不会再自行扩容
+    public void ensureCapacity(int size) {
+        if (output.length < size) {
+            output = Arrays.copyOf(output, size);
+        }
+    }
+
+    // 把src中的一个压缩报文解压到dst[dstOffset, dstOffset + rawLength)
+    public void inflate(byte[] src, int offset, int length, byte[] dst, int dstOffset, int rawLength)
+            throws DataFormatException {
+        long startTime = System.nanoTime();
+        inflater.setInput(src, offset, length);
+        int n = 0;
+        while (n < rawLength) {
+            int inflated = inflater.inflate(dst, dstOffset + n, rawLength - n);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() || inflater.finished())) {
+                throw new DataFormatException("Truncated compressed frame");
+            }
+            n += inflated;
+        }
+        // 消耗掉报文末尾的同步标记，否则下一次setInput会丢弃它
+        while (inflater.getRemaining() > 0) {
+            int remaining = inflater.getRemaining();
+            if (inflater.inflate(scratch) > 0) {
+                throw new DataFormatException("Compressed frame longer than declared");
+            }
+            if (inflater.getRemaining() == remaining) {
+                break;
+            }
+        }
+        stats.encodedIn += length;
+        stats.rawIn += rawLength;
+        stats.inflateNanos += System.nanoTime() - startTime;
+    }
+
+    public void close() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private void growIfFull() {
+        if (outputLength == output.length) {
+            output = Arrays.copyOf(output, output.length * 2);
+        }
+    }
+
+    // 压缩比和压缩、解压耗时统计
+    public static class Stats {
+        public long rawOut;
+        public long encodedOut;
+        public long deflateNanos;
+        public long rawIn;
+        public long encodedIn;
+        public long inflateNanos;
+
+        public void add(Stats other) {
+            rawOut += other.rawOut;
+            encodedOut += other.encodedOut;
+            deflateNanos += other.deflateNanos;
+            rawIn += other.rawIn;
+            encodedIn += other.encodedIn;
+            inflateNanos += other.inflateNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent %d -> %d bytes (ratio %.2f, deflate %.1f ms), "
+                            + "received %d -> %d bytes (ratio %.2f, inflate %.1f ms)",
+                    rawOut, encodedOut, ratio(rawOut, encodedOut), deflateNanos / 1e6,
+                    encodedIn, rawIn, ratio(rawIn, encodedIn), inflateNanos / 1e6);
+        }
+
+        private static double ratio(long raw, long encoded) {
+            return encoded == 0 ? 0 : (double) raw / encoded;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,446 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntSupplier;
+
+// 在同一进程内启动reversetcpserver，比较不同运行模式下每个连接的内存占用和请求延迟
+public class reversebench {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java reversebench <pool|virtual|nio> [--clients=N] [--blocks=K] [--size=B] [--threads=T] [--port=P]");
+            System.err.println("       java reversebench kernel [--size=B]");
+            System.err.println("       java reversebench load [--mode=pool|virtual|nio] [--clients=M] [--file-size=B] [--lmin=N] [--lmax=N] "
+                    + "[--window=W] [--host=H] [--port=P]");
+            System.exit(1);
+        }
+        if (args[0].equals("load")) {
+            runLoad(args);
+            return;
+        }
+
+        String mode = args[0];
+        int clients = 10000;
+        int blocks = 10;
+        int size = 64;
+        int threads = 8;
+        int port = 9100;
+
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            int value = Integer.parseInt(kv[1]);
+            switch (kv[0]) {
+                case "--clients": clients = value; break;
+                case "--blocks": blocks = value; break;
+                case "--size": size = value; break;
+                case "--threads": threads = value; break;
+                case "--port": port = value; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        if (mode.equals("kernel")) {
+            benchmarkKernels(size);
+            return;
+        }
+
+        // 在后台线程中启动服务器
+        // 所有连接同时保持打开，连接数和工作线程数上限都放宽到客户端数量
+        String[] serverArgs = {String.valueOf(port), "--mode=" + mode,
+                "--workers=" + clients, "--max-connections=" + clients};
+        Thread server = new Thread(() -> reversetcpserver.main(serverArgs), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        long rssBefore = residentMemory();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // 建立全部连接并完成握手，此时服务器为每个连接保留了处理状态
+        long setupStart = System.nanoTime();
+        Socket[] sockets = new Socket[clients];
+        for (int i = 0; i < clients; i++) {
+            sockets[i] = new Socket("127.0.0.1", port);
+            sockets[i].setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(sockets[i].getOutputStream());
+            out.writeShort(1);
+            out.writeInt(blocks);
+            out.flush();
+        }
+        for (Socket socket : sockets) {
+            if (new DataInputStream(socket.getInputStream()).readShort() != 2) {
+                throw new IOException("Invalid agreement packet");
+            }
+        }
+        long setupNanos = System.nanoTime() - setupStart;
+
+        System.gc();
+        Thread.sleep(1000);
+        long rssAfter = residentMemory();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        // 每个驱动线程轮流在自己负责的连接上发送数据块并等待响应
+        byte[] request = new byte[6 + size];
+        ByteBuffer.wrap(request).putShort((short) 3).putInt(size);
+        Arrays.fill(request, 6, request.length, (byte) 'a');
+
+        long[] latencies = new long[clients * blocks];
+        ExecutorService drivers = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        long runStart = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final int step = threads;
+            final int blockCount = blocks;
+            futures.add(drivers.submit(() -> {
+                byte[] reply = new byte[request.length];
+                for (int b = 0; b < blockCount; b++) {
+                    for (int c = first; c < sockets.length; c += step) {
+                        long start = System.nanoTime();
+                        sockets[c].getOutputStream().write(request);
+                        new DataInputStream(sockets[c].getInputStream()).readFully(reply);
+                        latencies[c * blockCount + b] = System.nanoTime() - start;
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long runNanos = System.nanoTime() - runStart;
+        drivers.shutdown();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+
+        Arrays.sort(latencies);
+        System.out.printf("mode=%s clients=%d blocks=%d size=%d%n", mode, clients, blocks, size);
+        System.out.printf("setup: %.1f ms total, %.1f us per connection%n",
+                setupNanos / 1e6, setupNanos / 1e3 / clients);
+        System.out.printf("memory: %.1f KB RSS per connection, %d threads added%n",
+                (rssAfter - rssBefore) / 1024.0 / clients, threadsAfter - threadsBefore);
+        System.out.printf("latency: p50=%.1f us p99=%.1f us max=%.1f us%n",
+                percentile(latencies, 50) / 1e3, percentile(latencies, 99) / 1e3,
+                latencies[latencies.length - 1] / 1e3);
+        System.out.printf("throughput: %.0f blocks/s%n", latencies.length / (runNanos / 1e9));
+        System.exit(0);
+    }
+
+    // 负载测试：M个模拟客户端并发传输各自的文件，每个客户端一条连接、一个发送线程和一个读取线程，
+    // 按Lmin~Lmax随机分块，最多window个数据块在途。统计建连时间、每个数据块和每次传输的延迟分布以及有效吞吐量
+    private static void runLoad(String[] args) throws Exception {
+        String mode = "pool";
+        String host = null;
+        int port = 9100;
+        int clients = 100;
+        int fileSize = 1 << 20;
+        int lmin = 100;
+        int lmax = 1000;
+        int window = 8;
+
+        for (int i = 1; i < args.length; i++) {
+            String[] kv = args[i].split("=", 2);
+            switch (kv[0]) {
+                case "--mode": mode = kv[1]; break;
+                case "--host": host = kv[1]; break;
+                case "--port": port = Integer.parseInt(kv[1]); break;
+                case "--clients": clients = Integer.parseInt(kv[1]); break;
+                case "--file-size": fileSize = Integer.parseInt(kv[1]); break;
+                case "--lmin": lmin = Integer.parseInt(kv[1]); break;
+                case "--lmax": lmax = Integer.parseInt(kv[1]); break;
+                case "--window": window = Integer.parseInt(kv[1]); break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        // 未指定服务器地址时在进程内启动服务器
+        if (host == null) {
+            host = "127.0.0.1";
+            String[] serverArgs = {String.valueOf(port), "--mode=" + mode,
+                    "--workers=" + clients, "--max-connections=" + clients};
+            Thread server = new Thread(() -> reversetcpserver.main(serverArgs), "bench-server");
+            server.setDaemon(true);
+            server.start();
+            Thread.sleep(500);
+        } else {
+            mode = "external";
+        }
+
+        byte[] content = new byte[fileSize];
+        Random random = new Random(1);
+        for (int i = 0; i < fileSize; i++) {
+            content[i] = (byte) (' ' + random.nextInt(95));
+        }
+
+        // 统计对象可以被多个线程同时记录，所有客户端共用一份
+        RTTStatistics setup = new RTTStatistics();
+        RTTStatistics blocks = new RTTStatistics();
+        RTTStatistics transfers = new RTTStatistics();
+        LoadClient[] loadClients = new LoadClient[clients];
+        Thread[] threads = new Thread[clients];
+        CountDownLatch start = new CountDownLatch(1);
+        for (int i = 0; i < clients; i++) {
+            loadClients[i] = new LoadClient(host, port, content, lmin, lmax, window, i, setup, blocks, transfers);
+            final LoadClient client = loadClients[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    client.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "load-client-" + i);
+            threads[i].start();
+        }
+
+        // 所有客户端同时开始
+        long runStart = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - runStart) / 1e9;
+
+        long bytes = 0;
+        int failed = 0;
+        for (LoadClient client : loadClients) {
+            bytes += client.bytes;
+            if (client.error != null) {
+                failed++;
+                if (failed == 1) {
+                    System.err.println("Client error: " + client.error.getMessage());
+                }
+            }
+        }
+
+        System.out.printf("mode=%s clients=%d file=%d bytes Lmin=%d Lmax=%d window=%d%n",
+                mode, clients, fileSize, lmin, lmax, window);
+        System.out.printf("setup:    p50=%.1f us p99=%.1f us max=%.1f us%n",
+                setup.percentile(50) / 1e3, setup.percentile(99) / 1e3, setup.max() / 1e3);
+        System.out.printf("block:    p50=%.1f us p99=%.1f us p99.9=%.1f us max=%.1f us%n",
+                blocks.percentile(50) / 1e3, blocks.percentile(99) / 1e3, blocks.percentile(99.9) / 1e3,
+                blocks.max() / 1e3);
+        System.out.printf("transfer: p50=%.1f ms p99=%.1f ms p99.9=%.1f ms max=%.1f ms%n",
+                transfers.percentile(50) / 1e6, transfers.percentile(99) / 1e6, transfers.percentile(99.9) / 1e6,
+                transfers.max() / 1e6);
+        System.out.printf("goodput:  %.2f MB/s, %.0f blocks/s, %d failed client(s)%n",
+                bytes / 1e6 / seconds, blocks.count() / seconds, failed);
+
+        // 机器可读的汇总，便于脚本比较不同运行模式
+        System.out.printf(Locale.ROOT, "{\"server\": \"tcp\", \"mode\": \"%s\", \"clients\": %d, \"fileSize\": %d, "
+                        + "\"lmin\": %d, \"lmax\": %d, \"window\": %d, \"seconds\": %.3f, \"failed\": %d, "
+                        + "\"goodputBytesPerSecond\": %.1f, \"blocksPerSecond\": %.1f, "
+                        + "\"setupNanos\": %s, \"blockNanos\": %s, \"transferNanos\": %s}%n",
+                mode, clients, fileSize, lmin, lmax, window, seconds, failed, bytes / seconds, blocks.count() / seconds,
+                setup.toJson(), blocks.toJson(), transfers.toJson());
+        System.exit(0);
+    }
+
+    // 一个模拟客户端：握手后把整个文件分块发送，发送时间记录在按窗口大小循环使用的数组中
+    private static class LoadClient implements Runnable {
+        private final String host;
+        private final int port;
+        private final byte[] content;
+        private final int lmin;
+        private final int lmax;
+        private final int window;
+        private final long seed;
+        private final RTTStatistics setup;
+        private final RTTStatistics blocks;
+        private final RTTStatistics transfers;
+        long bytes;
+        IOException error;
+
+        public LoadClient(String host, int port, byte[] content, int lmin, int lmax, int window, long seed,
+                          RTTStatistics setup, RTTStatistics blocks, RTTStatistics transfers) {
+            this.host = host;
+            this.port = port;
+            this.content = content;
+            this.lmin = lmin;
+            this.lmax = lmax;
+            this.window = Math.max(1, window);
+            this.seed = seed;
+            this.setup = setup;
+            this.blocks = blocks;
+            this.transfers = transfers;
+        }
+
+        @Override
+        public void run() {
+            // 预先分块，计时期间不再生成随机数
+            Random random = new Random(seed);
+            List<Integer> sizes = new ArrayList<>();
+            for (int offset = 0; offset < content.length; ) {
+                int size = Math.min(content.length - offset, lmin + random.nextInt(lmax - lmin + 1));
+                sizes.add(size);
+                offset += size;
+            }
+
+            long transferStart = System.nanoTime();
+            try (Socket socket = new Socket(host, port)) {
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+                out.writeShort(1);
+                out.writeInt(sizes.size());
+                out.flush();
+                short type = in.readShort();
+                if (type != 2) {
+                    throw new IOException(type == 9 ? "Server rejected request: " + in.readInt() : "Invalid agreement packet");
+                }
+                setup.record(System.nanoTime() - transferStart);
+
+                // 由单独的读取线程按序接收响应，发送方只在窗口有空位时写出请求，
+                // 两个方向互不阻塞，不会因双方的套接字缓冲区都写满而死锁
+                AtomicLongArray sendTimes = new AtomicLongArray(window);
+                Semaphore permits = new Semaphore(window);
+                IOException[] readError = new IOException[1];
+                Thread reader = new Thread(() -> {
+                    byte[] reply = new byte[lmax];
+                    try {
+                        for (int received = 0; received < sizes.size(); received++) {
+                            short answer = in.readShort();
+                            int length = in.readInt();
+                            if (answer != 4 || length != sizes.get(received)) {
+                                throw new IOException("Invalid answer packet");
+                            }
+                            in.readFully(reply, 0, length);
+                            blocks.record(System.nanoTime() - sendTimes.get(received % window));
+                            bytes += length;
+                            permits.release();
+                        }
+                    } catch (IOException e) {
+                        readError[0] = e;
+                        // 唤醒等待窗口的发送方
+                        permits.release(sizes.size());
+                    }
+                }, Thread.currentThread().getName() + "-reader");
+                reader.start();
+
+                int offset = 0;
+                for (int sent = 0; sent < sizes.size() && readError[0] == null; sent++) {
+                    // 窗口已满时先把已缓冲的请求发出，再等待响应腾出位置
+                    if (!permits.tryAcquire()) {
+                        out.flush();
+                        permits.acquire();
+                    }
+                    int size = sizes.get(sent);
+                    out.writeShort(3);
+                    out.writeInt(size);
+                    out.write(content, offset, size);
+                    offset += size;
+                    sendTimes.set(sent % window, System.nanoTime());
+                }
+                out.flush();
+                reader.join();
+                if (readError[0] != null) {
+                    throw readError[0];
+                }
+                transfers.record(System.nanoTime() - transferStart);
+            } catch (IOException e) {
+                error = e;
+            } catch (InterruptedException e) {
+                error = new InterruptedIOException("Interrupted while waiting for replies");
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // 比较原StringBuilder.reverse()路径与按字反转内核的吞吐量（GB/s）
+    private static void benchmarkKernels(int size) {
+        byte[] data = new byte[size];
+        new Random(1).nextBytes(data);
+        for (int i = 0; i < size; i++) {
+            data[i] &= 0x7f;
+        }
+        byte[] copy = new byte[size];
+        ByteBuffer directSrc = ByteBuffer.allocateDirect(size).put(data);
+        ByteBuffer directDst = ByteBuffer.allocateDirect(size);
+
+        // 先校验各内核结果一致
+        byte[] expected = new StringBuilder(new String(data, StandardCharsets.US_ASCII)).reverse().toString()
+                .getBytes(StandardCharsets.US_ASCII);
+        reversetcpserver.reverseCopy(data, 0, copy, 0, size);
+        reversetcpserver.reverseCopy(directSrc, 0, directDst, 0, size);
+        byte[] fromDirect = new byte[size];
+        directDst.duplicate().position(0).get(fromDirect);
+        byte[] inPlace = data.clone();
+        reversetcpserver.reverse(inPlace, 0, size);
+        if (!Arrays.equals(expected, copy) || !Arrays.equals(expected, fromDirect) || !Arrays.equals(expected, inPlace)) {
+            throw new IllegalStateException("Reversal kernels disagree");
+        }
+
+        System.out.printf("block size: %d bytes%n", size);
+        report("StringBuilder.reverse", size, () -> {
+            String reversed = new StringBuilder(new String(data, StandardCharsets.US_ASCII)).reverse().toString();
+            return reversed.getBytes(StandardCharsets.US_ASCII).length;
+        });
+        report("reverse (in place)", size, () -> {
+            reversetcpserver.reverse(copy, 0, size);
+            return copy[0];
+        });
+        report("reverseCopy (heap)", size, () -> {
+            reversetcpserver.reverseCopy(data, 0, copy, 0, size);
+            return copy[0];
+        });
+        report("reverseCopy (direct)", size, () -> {
+            reversetcpserver.reverseCopy(directSrc, 0, directDst, 0, size);
+            return directDst.get(0);
+        });
+    }
+
+    private static void report(String name, int size, IntSupplier kernel) {
+        // 预热，让JIT完成编译
+        long sink = 0;
+        long warmupEnd = System.nanoTime() + 1_000_000_000L;
+        while (System.nanoTime() < warmupEnd) {
+            sink += kernel.getAsInt();
+        }
+
+        long iterations = 0;
+        long start = System.nanoTime();
+        long end = start + 2_000_000_000L;
+        long now;
+        do {
+            for (int i = 0; i < 64; i++) {
+                sink += kernel.getAsInt();
+            }
+            iterations += 64;
+            now = System.nanoTime();
+        } while (now < end);
+
+        double gbPerSecond = (double) iterations * size / (now - start);
+        System.out.printf("  %-24s %8.2f GB/s  (%d)%n", name, gbPerSecond, sink & 1);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    // 读取进程常驻内存（Linux），其他系统退化为已用堆内存
+    private static long residentMemory() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // 忽略，使用堆内存
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
\ No newline at end of file
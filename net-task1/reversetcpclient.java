@@ -1,13 +1,28 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.DataFormatException;
 
 public class reversetcpclient {
+    private static final int HEADER_SIZE = 6;
+    private static final int COMPRESSED_HEADER_SIZE = 10;
+    private static final int SEND_BUFFER_SIZE = 65536;
+    // 扩展能力：初始化报文和同意报文类型字段的高字节
+    private static final int CAP_BATCH = 0x01;
+    private static final int CAP_DEFLATE = 0x02;
+    private static final int CAP_SESSION = 0x04;
+    // 默认只压缩不小于该长度的报文，更小的报文压缩收益抵不上开销
+    private static final int DEFAULT_COMPRESS_MIN = 256;
+
     public static void main(String[] args) {
-        if (args.length != 5) {
-            System.err.println("Usage: java reversetcpclient <serverIP> <serverPort> <filename> <Lmin> <Lmax>");
+        if (args.length < 5) {
+            System.err.println("Usage: java reversetcpclient <serverIP> <serverPort> <filename> <Lmin> <Lmax> [--window=N] [--stream] [--connections=N] [--batch=N] [--compress[=MIN]]");
             System.exit(1);
         }
 
@@ -16,6 +31,56 @@ public class reversetcpclient {
         String filename = args[2];
         int Lmin = Integer.parseInt(args[3]);
         int Lmax = Integer.parseInt(args[4]);
+        boolean stream = false;
+        TransferOptions options = new TransferOptions();
+        options.Lmin = Lmin;
+        options.Lmax = Lmax;
+
+        // 解析可选参数
+        for (int i = 5; i < args.length; i++) {
+            if (args[i].startsWith("--window=")) {
+                options.window = Integer.parseInt(args[i].substring("--window=".length()));
+            } else if (args[i].equals("--stream")) {
+                stream = true;
+            } else if (args[i].startsWith("--connections=")) {
+                // 多连接并行传输基于流式模式
+                options.connections = Integer.parseInt(args[i].substring("--connections=".length()));
+                stream = true;
+            } else if (args[i].startsWith("--batch=")) {
+                // 批量报文同样基于流式模式
+                options.batch = Integer.parseInt(args[i].substring("--batch=".length()));
+                stream = true;
+            } else if (args[i].equals("--compress")) {
+                // 压缩同样基于流式模式
+                options.compressMin = DEFAULT_COMPRESS_MIN;
+                stream = true;
+            } else if (args[i].startsWith("--compress=")) {
+                options.compressMin = Integer.parseInt(args[i].substring("--compress=".length()));
+                stream = true;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        // 参数为目录时，以会话方式批量处理目录树中的所有文件
+        if (Files.isDirectory(Paths.get(filename))) {
+            try {
+                reverseDirectory(serverIP, serverPort, Paths.get(filename), options);
+            } catch (IOException e) {
+                System.err.println("Client error: " + e.getMessage());
+            }
+            return;
+        }
+
+        if (stream) {
+            try {
+                streamFile(serverIP, serverPort, filename, options);
+            } catch (IOException e) {
+                System.err.println("Client error: " + e.getMessage());
+            }
+            return;
+        }
 
         try {
             // 读取文件内容
@@ -26,8 +91,8 @@ public class reversetcpclient {
             int blockCount = blocks.size();
 
             try (Socket socket = new Socket(serverIP, serverPort);
-                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream in = new DataInputStream(socket.getInputStream())) {
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
 
                 // 发送初始化报文
                 out.writeShort(1);
@@ -36,6 +101,10 @@ public class reversetcpclient {
 
                 // 接收同意报文
                 short type = in.readShort();
+                if (type == 9) {
+                    System.err.println("Server rejected request: " + rejectReason(in.readInt()));
+                    return;
+                }
                 if (type != 2) {
                     System.err.println("Invalid agreement packet");
                     return;
@@ -44,8 +113,13 @@ public class reversetcpclient {
                 // 存储所有反转块
                 List<String> reversedBlocks = new ArrayList<>();
 
-                // 发送并接收每个数据块
-                for (int i = 0; i < blockCount; i++) {
+                // 流水线模式
+                if (options.window > 1) {
+                    reversedBlocks = Arrays.asList(pipelineBlocks(blocks, out, in, options.window));
+                }
+
+                // 停等模式：发送并接收每个数据块，被拒绝或响应无效时不生成输出文件
+                for (int i = 0; i < blockCount && options.window <= 1; i++) {
                     String block = blocks.get(i);
 
                     // 发送反转请求
@@ -56,9 +130,13 @@ public class reversetcpclient {
 
                     // 接收反转响应
                     type = in.readShort();
+                    if (type == 9) {
+                        System.err.println("Server rejected request: " + rejectReason(in.readInt()));
+                        return;
+                    }
                     if (type != 4) {
                         System.err.println("Invalid answer packet");
-                        break;
+                        return;
                     }
 
                     int length = in.readInt();
@@ -84,7 +162,720 @@ public class reversetcpclient {
         }
     }
 
-    private static List<String> splitFile(String content, int Lmin, int Lmax) {
+    // 流水线模式：最多window个数据块在途，由单独的读取线程按序接收响应
+    private static String[] pipelineBlocks(List<String> blocks, DataOutputStream out, DataInputStream in,
+                                           int window) throws IOException {
+        int blockCount = blocks.size();
+        String[] reversedBlocks = new String[blockCount];
+        Semaphore permits = new Semaphore(window);
+        IOException[] readError = new IOException[1];
+
+        Thread reader = new Thread(() -> {
+            try {
+                for (int i = 0; i < blockCount; i++) {
+                    // 接收反转响应
+                    short type = in.readShort();
+                    if (type == 9) {
+                        throw new IOException("Server rejected request: " + rejectReason(in.readInt()));
+                    }
+                    if (type != 4) {
+                        throw new IOException("Invalid answer packet");
+                    }
+
+                    int length = in.readInt();
+                    byte[] reversedData = new byte[length];
+                    in.readFully(reversedData);
+
+                    reversedBlocks[i] = new String(reversedData, StandardCharsets.US_ASCII);
+                    System.out.println((i+1) + ": " + reversedBlocks[i]);
+                    permits.release();
+                }
+            } catch (IOException e) {
+                readError[0] = e;
+                // 唤醒等待窗口的发送方
+                permits.release(blockCount);
+            }
+        }, "reply-reader");
+        reader.start();
+
+        try {
+            for (int i = 0; i < blockCount && readError[0] == null; i++) {
+                // 窗口已满时先把已缓冲的请求发出，再等待响应腾出位置
+                if (!permits.tryAcquire()) {
+                    out.flush();
+                    permits.acquire();
+                }
+
+                String block = blocks.get(i);
+                out.writeShort(3);
+                out.writeInt(block.length());
+                out.writeBytes(block);
+            }
+            out.flush();
+            reader.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for replies");
+        }
+
+        if (readError[0] != null) {
+            throw readError[0];
+        }
+        return reversedBlocks;
+    }
+
+    // 流式模式：数据块按位置从输入文件读取，反转结果按位置直接写入输出文件，
+    // 内存占用与文件大小无关。文件被均分为connections个连续区间，每个区间由一条连接并行处理
+    private static void streamFile(String serverIP, int serverPort, String filename,
+                                   TransferOptions options) throws IOException {
+        String outputFilename = filename + ".reversed";
+        try (FileChannel input = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(outputFilename), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            long fileSize = input.size();
+            int connections = options.connections;
+            ExecutorService pool = Executors.newFixedThreadPool(connections);
+            List<Future<Long>> results = new ArrayList<>();
+            ReverseConnection[] transfers = new ReverseConnection[connections];
+            long startTime = System.nanoTime();
+
+            for (int i = 0; i < connections; i++) {
+                final int index = i;
+                long start = fileSize * i / connections;
+                long end = fileSize * (i + 1) / connections;
+                results.add(pool.submit(() -> {
+                    try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverIP, serverPort))) {
+                        Region region = new Region(input, output, fileSize, start, end, options, false);
+                        transfers[index] = new ReverseConnection(channel, options);
+                        try {
+                            transfers[index].open(false, region.blockCount);
+                            transfers[index].send(region);
+                            transfers[index].finish();
+                        } finally {
+                            transfers[index].abort();
+                        }
+                        return region.blockCount;
+                    }
+                }));
+            }
+
+            long blockCount = sum(results, pool);
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+
+            System.out.printf("Reversed %d bytes in %d blocks over %d connection(s), %.2f MB/s%n",
+                    fileSize, blockCount, connections, fileSize / 1e6 / seconds);
+            printCompressionStats(transfers, options);
+            System.out.println("Final reversed file saved as: " + outputFilename);
+        }
+    }
+
+    // 目录批处理模式：遍历目录树中的所有文件，通过connections条长连接组成的连接池以会话方式处理，
+    // 每个文件之前发送一个文件头报文，多个文件在同一连接上连续流水线发送
+    private static void reverseDirectory(String serverIP, int serverPort, Path directory,
+                                         TransferOptions options) throws IOException {
+        Queue<Path> files = new ConcurrentLinkedQueue<>();
+        try (java.util.stream.Stream<Path> walk = Files.walk(directory)) {
+            walk.filter(Files::isRegularFile)
+                    .filter(path -> !path.getFileName().toString().endsWith(".reversed"))
+                    .forEach(files::add);
+        }
+        int fileCount = files.size();
+
+        int connections = options.connections;
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<Long>> results = new ArrayList<>();
+        ReverseConnection[] transfers = new ReverseConnection[connections];
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < connections; i++) {
+            final int index = i;
+            results.add(pool.submit(() -> {
+                try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(serverIP, serverPort))) {
+                    transfers[index] = new ReverseConnection(channel, options);
+                    try {
+                        transfers[index].open(true, 0);
+
+                        long bytes = 0;
+                        Path path;
+                        while ((path = files.poll()) != null) {
+                            // 两个文件由读取线程在收完该文件的全部响应后关闭
+                            Region region = openFileRegion(path, options);
+                            transfers[index].send(region);
+                            bytes += region.fileSize;
+                        }
+                        transfers[index].finish();
+                        return bytes;
+                    } finally {
+                        transfers[index].abort();
+                    }
+                }
+            }));
+        }
+
+        long totalBytes = sum(results, pool);
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.printf("Reversed %d files (%d bytes) over %d connection(s) in %.2f s, %.1f files/s, %.2f MB/s%n",
+                fileCount, totalBytes, connections, seconds, fileCount / seconds, totalBytes / 1e6 / seconds);
+        printCompressionStats(transfers, options);
+    }
+
+    // 打开一个文件和它的.reversed输出文件，作为会话中的一个区间；出错时关闭已经打开的文件
+    private static Region openFileRegion(Path path, TransferOptions options) throws IOException {
+        FileChannel input = null;
+        FileChannel output = null;
+        try {
+            input = FileChannel.open(path, StandardOpenOption.READ);
+            output = FileChannel.open(Paths.get(path + ".reversed"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            long fileSize = input.size();
+            return new Region(input, output, fileSize, 0, fileSize, options, true);
+        } catch (IOException e) {
+            if (input != null) {
+                input.close();
+            }
+            if (output != null) {
+                output.close();
+            }
+            throw e;
+        }
+    }
+
+    // 等待所有连接完成并汇总结果
+    private static long sum(List<Future<Long>> results, ExecutorService pool) throws IOException {
+        long total = 0;
+        try {
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for connections");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return total;
+    }
+
+    private static void printCompressionStats(ReverseConnection[] transfers, TransferOptions options) {
+        if (options.compressMin < 0) {
+            return;
+        }
+        DeflateCodec.Stats stats = new DeflateCodec.Stats();
+        for (ReverseConnection transfer : transfers) {
+            if (transfer != null && transfer.codec != null) {
+                stats.add(transfer.codec.stats);
+            }
+        }
+        System.out.println("Compression: " + stats);
+    }
+
+    // 流式传输的可选参数
+    private static class TransferOptions {
+        int Lmin;
+        int Lmax;
+        int window = 1;
+        int connections = 1;
+        int batch = 1;
+        // 压缩的最小报文长度，负数表示不压缩
+        int compressMin = -1;
+    }
+
+    // 由一条连接处理的输入文件区间[start, end)。
+    // 块[offset, offset + size)反转后位于输出文件的 fileSize - offset - size 处
+    private static class Region {
+        final FileChannel input;
+        final FileChannel output;
+        final long fileSize;
+        final long start;
+        final long end;
+        // 发送方和读取线程用相同的种子各自重放分块序列
+        final long seed = System.nanoTime();
+        final long blockCount;
+        // 会话模式下区间处理完毕后由读取线程关闭输入输出文件
+        final boolean ownsFiles;
+
+        public Region(FileChannel input, FileChannel output, long fileSize, long start, long end,
+                      TransferOptions options, boolean ownsFiles) throws IOException {
+            this.input = input;
+            this.output = output;
+            this.fileSize = fileSize;
+            this.start = start;
+            this.end = end;
+            this.ownsFiles = ownsFiles;
+            this.blockCount = BlockSplitter.count(start, end, options.Lmin, options.Lmax, seed);
+            if (blockCount > Integer.MAX_VALUE) {
+                throw new IOException("Too many blocks for one connection, increase Lmin");
+            }
+        }
+
+        public BlockSplitter splitter(TransferOptions options) {
+            return new BlockSplitter(start, end, options.Lmin, options.Lmax, seed);
+        }
+
+        public void finished() throws IOException {
+            if (ownsFiles) {
+                input.close();
+                output.close();
+            }
+        }
+    }
+
+    // 一条到服务器的连接：发送方按窗口流水线发送各区间的请求，
+    // 读取线程按发送顺序接收响应并写入对应的输出文件。
+    // 会话模式下连接上可以依次处理多个文件，窗口跨越文件边界
+    private static class ReverseConnection {
+        private final SocketChannel channel;
+        private final TransferOptions options;
+        private final Semaphore permits;
+        private volatile IOException readError;
+        // 已发送、等待读取线程接收响应的区间，END表示会话结束
+        private final BlockingQueue<Optional<Region>> sent = new LinkedBlockingQueue<>();
+        private final ByteBuffer sendBuffer;
+        private Thread reader;
+        // 服务器在同意报文中接受的扩展能力
+        private int caps;
+        // 协商了压缩能力时使用的编解码器：发送方只用压缩流，读取线程只用解压流
+        DeflateCodec codec;
+        private final ByteBuffer compressedHeader = ByteBuffer.allocate(COMPRESSED_HEADER_SIZE);
+        private byte[] encodedIn = new byte[SEND_BUFFER_SIZE];
+        private byte[] rawIn = new byte[SEND_BUFFER_SIZE];
+        // 批量模式下的长度表和数据缓冲区
+        private ByteBuffer table;
+        private ByteBuffer data;
+
+        public ReverseConnection(SocketChannel channel, TransferOptions options) {
+            this.channel = channel;
+            this.options = options;
+            this.permits = new Semaphore(Math.max(1, options.window));
+            this.sendBuffer = ByteBuffer.allocate(Math.max(SEND_BUFFER_SIZE, HEADER_SIZE + options.Lmax));
+        }
+
+        // 握手并启动读取线程。非会话模式下blockCount是整条连接要处理的数据块数量
+        public void open(boolean session, long blockCount) throws IOException {
+            // 发送初始化报文，高字节为请求的扩展能力
+            int requested = (options.batch > 1 ? CAP_BATCH : 0)
+                    | (options.compressMin >= 0 ? CAP_DEFLATE : 0)
+                    | (session ? CAP_SESSION : 0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putShort((short) (requested << 8 | 1)).putInt((int) blockCount).flip();
+            writeFully(channel, header);
+
+            // 接收同意报文，高字节为服务器接受的扩展能力
+            header.clear().limit(2);
+            readFully(channel, header);
+            short type = header.getShort(0);
+            if (type == 9) {
+                header.limit(HEADER_SIZE);
+                readFully(channel, header);
+                throw new IOException("Server rejected request: " + rejectReason(header.getInt(2)));
+            }
+            if ((type & 0xff) != 2) {
+                throw new IOException("Invalid agreement packet");
+            }
+            caps = (type >> 8) & requested;
+            if (session && (caps & CAP_SESSION) == 0) {
+                throw new IOException("Server does not support multi-file sessions");
+            }
+            if ((caps & CAP_DEFLATE) != 0) {
+                codec = new DeflateCodec();
+            }
+            if ((caps & CAP_BATCH) != 0) {
+                table = ByteBuffer.allocate(HEADER_SIZE + 4 * options.batch);
+                data = ByteBuffer.allocate(options.Lmax);
+            }
+
+            reader = new Thread(this::receiveReplies, "reply-reader");
+            // 发送方出错退出时读取线程不应阻止JVM退出
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        // 发送一个区间的全部请求；会话模式下先发送文件头报文
+        public void send(Region region) throws IOException {
+            try {
+                if (readError != null) {
+                    // 区间没有交给读取线程，由这里关闭它的文件
+                    region.finished();
+                    throw readError;
+                }
+                sent.put(Optional.of(region));
+                if ((caps & CAP_SESSION) != 0) {
+                    if (sendBuffer.remaining() < HEADER_SIZE) {
+                        flushBuffer(channel, sendBuffer);
+                    }
+                    sendBuffer.putShort((short) 8).putInt((int) region.blockCount);
+                }
+                if ((caps & CAP_BATCH) != 0) {
+                    sendBatches(region);
+                } else {
+                    sendBlocks(region);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while sending");
+            }
+        }
+
+        // 发出剩余请求，等待所有响应，然后结束会话
+        public void finish() throws IOException {
+            try {
+                flushBuffer(channel, sendBuffer);
+                sent.put(Optional.empty());
+                reader.join();
+                // 会话模式下关闭发送方向，服务器据此结束会话
+                if ((caps & CAP_SESSION) != 0 && readError == null) {
+                    channel.shutdownOutput();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for replies");
+            } finally {
+                if (codec != null && !reader.isAlive()) {
+                    codec.close();
+                }
+            }
+
+            if (readError != null) {
+                throw readError;
+            }
+        }
+
+        // 发送方出错时结束仍在运行的读取线程：它可能阻塞在等待下一个区间或读取连接上，
+        // 中断后前者抛出InterruptedException，后者因通道被关闭而抛出异常。正常结束后调用没有效果
+        public void abort() {
+            if (reader != null && reader.isAlive()) {
+                reader.interrupt();
+            }
+        }
+
+        // 等待窗口中出现空位，等待前先把已缓冲的请求发出；读取线程出错时返回false
+        private boolean acquireWindow() throws IOException, InterruptedException {
+            if (!permits.tryAcquire()) {
+                flushBuffer(channel, sendBuffer);
+                permits.acquire();
+            }
+            return readError == null;
+        }
+
+        // 每个数据块一个3型请求报文，多个报文先积累在发送缓冲区中，窗口已满或缓冲区写满时再一起发出
+        private void sendBlocks(Region region) throws IOException, InterruptedException {
+            BlockSplitter splitter = region.splitter(options);
+
+            while (splitter.hasNext() && acquireWindow()) {
+                long offset = splitter.offset();
+                int size = splitter.next();
+                if (sendBuffer.remaining() < HEADER_SIZE + size) {
+                    flushBuffer(channel, sendBuffer);
+                }
+
+                // 发送反转请求，数据直接从输入文件读入发送缓冲区
+                int framePos = sendBuffer.position();
+                sendBuffer.putShort((short) 3).putInt(size);
+                int limit = sendBuffer.limit();
+                sendBuffer.limit(sendBuffer.position() + size);
+                readFully(region.input, sendBuffer, offset);
+                sendBuffer.limit(limit);
+
+                // 足够大的报文压缩后以7型报文代替原报文
+                if (compresses(HEADER_SIZE + size)) {
+                    codec.reset();
+                    codec.deflate(sendBuffer.array(), framePos, HEADER_SIZE + size);
+                    sendBuffer.position(framePos);
+                    sendCompressed(HEADER_SIZE + size);
+                }
+            }
+        }
+
+        private boolean compresses(int frameLength) {
+            return codec != null && frameLength >= options.compressMin;
+        }
+
+        // 结束压缩流中的当前报文，以7型报文发出：能放进发送缓冲区时追加到缓冲区，否则直接写出
+        private void sendCompressed(int rawLength) throws IOException {
+            int n = codec.flush();
+            compressedHeader.clear();
+            compressedHeader.putShort((short) 7).putInt(rawLength).putInt(n).flip();
+            if (sendBuffer.remaining() < COMPRESSED_HEADER_SIZE + n) {
+                flushBuffer(channel, sendBuffer);
+            }
+            if (sendBuffer.remaining() >= COMPRESSED_HEADER_SIZE + n) {
+                sendBuffer.put(compressedHeader).put(codec.buffer(), 0, n);
+                return;
+            }
+            ByteBuffer[] frame = {compressedHeader, ByteBuffer.wrap(codec.buffer(), 0, n)};
+            while (frame[1].hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        // 每batch个连续数据块合成一个5型批量请求报文：发送缓冲区中尚未发出的内容、
+        // 头部和长度表、数据用一次聚集写发出
+        private void sendBatches(Region region) throws IOException, InterruptedException {
+            int batch = options.batch;
+            BlockSplitter splitter = region.splitter(options);
+
+            while (splitter.hasNext() && acquireWindow()) {
+                long offset = splitter.offset();
+                table.clear();
+                table.putShort((short) 5).putInt(0);
+                int count = 0;
+                int total = 0;
+                while (count < batch && splitter.hasNext()) {
+                    int size = splitter.next();
+                    table.putInt(size);
+                    total += size;
+                    count++;
+                }
+                table.putInt(2, count).flip();
+
+                // 同一批中的数据块在文件中是连续的，一次读出
+                if (data.capacity() < total) {
+                    data = ByteBuffer.allocate(Math.max(total, data.capacity() * 2));
+                }
+                data.clear().limit(total);
+                readFully(region.input, data, offset);
+                data.flip();
+
+                if (compresses(table.limit() + total)) {
+                    codec.reset();
+                    codec.deflate(table.array(), 0, table.limit());
+                    codec.deflate(data.array(), 0, total);
+                    sendCompressed(table.limit() + total);
+                    continue;
+                }
+
+                sendBuffer.flip();
+                ByteBuffer[] frame = {sendBuffer, table, data};
+                while (data.hasRemaining()) {
+                    channel.write(frame);
+                }
+                sendBuffer.clear();
+            }
+        }
+
+        // 按序接收各区间的4型或6型响应。同一批数据块反转后在输出文件中是一段连续区域，
+        // 各块直接读到该区域在缓冲区中的对应位置，再一次写入输出文件
+        private void receiveReplies() {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4 * Math.max(2, options.batch));
+            ByteBuffer reply = ByteBuffer.allocate(options.Lmax);
+            try {
+                Optional<Region> next;
+                while ((next = sent.take()).isPresent()) {
+                    Region region = next.get();
+                    BlockSplitter splitter = region.splitter(options);
+
+                    while (splitter.hasNext()) {
+                        header.clear().limit(HEADER_SIZE);
+                        readFully(channel, header);
+                        if (header.getShort(0) == 9) {
+                            throw new IOException("Server rejected request: " + rejectReason(header.getInt(2)));
+                        }
+
+                        // 压缩报文先解压出完整的4型或6型报文，再从解压结果中按原格式解析
+                        ByteBuffer inflated = null;
+                        if (header.getShort(0) == 7 && codec != null) {
+                            inflated = receiveCompressed(header);
+                            header.clear().limit(HEADER_SIZE);
+                            fill(header, inflated);
+                        }
+
+                        short type = header.getShort(0);
+                        int count;
+                        if (type == 4) {
+                            // 单块响应相当于只含一个数据块、长度表在头部的批量响应
+                            count = 1;
+                        } else if (type == 6 && (caps & CAP_BATCH) != 0) {
+                            count = header.getInt(2);
+                            if (count < 1 || count > options.batch) {
+                                throw new IOException("Invalid batch answer packet");
+                            }
+                            header.limit(HEADER_SIZE + 4 * count);
+                            fill(header, inflated);
+                        } else {
+                            throw new IOException("Invalid answer packet");
+                        }
+                        int tableStart = type == 4 ? HEADER_SIZE - 4 : HEADER_SIZE;
+
+                        // 核对长度表并计算本批数据的总长度
+                        long offset = splitter.offset();
+                        int total = 0;
+                        for (int i = 0; i < count; i++) {
+                            int size = splitter.next();
+                            if (header.getInt(tableStart + 4 * i) != size) {
+                                throw new IOException("Invalid answer packet");
+                            }
+                            total += size;
+                        }
+                        if (reply.capacity() < total) {
+                            reply = ByteBuffer.allocate(Math.max(total, reply.capacity() * 2));
+                        }
+
+                        // 后发送的块反转后排在前面
+                        int blockEnd = total;
+                        for (int i = 0; i < count; i++) {
+                            int size = header.getInt(tableStart + 4 * i);
+                            reply.limit(blockEnd).position(blockEnd - size);
+                            fill(reply, inflated);
+                            blockEnd -= size;
+                        }
+                        if (inflated != null && inflated.hasRemaining()) {
+                            throw new IOException("Invalid answer packet");
+                        }
+                        reply.limit(total).position(0);
+
+                        long position = region.fileSize - offset - total;
+                        while (reply.hasRemaining()) {
+                            position += region.output.write(reply, position);
+                        }
+                        permits.release();
+                    }
+                    region.finished();
+                }
+            } catch (IOException e) {
+                readError = e;
+                // 唤醒等待窗口的发送方
+                permits.release(Math.max(1, options.window));
+            } catch (InterruptedException e) {
+                readError = new InterruptedIOException("Interrupted while receiving");
+                permits.release(Math.max(1, options.window));
+            }
+        }
+
+        // 读取header之后的7型报文其余部分并解压，返回解压出的报文
+        private ByteBuffer receiveCompressed(ByteBuffer header) throws IOException {
+            header.limit(COMPRESSED_HEADER_SIZE);
+            readFully(channel, header);
+            int rawLength = header.getInt(2);
+            int encodedLength = header.getInt(6);
+            if (rawLength < HEADER_SIZE || encodedLength < 0) {
+                throw new IOException("Invalid compressed answer packet");
+            }
+            if (encodedIn.length < encodedLength) {
+                encodedIn = new byte[Math.max(encodedIn.length * 2, encodedLength)];
+            }
+            if (rawIn.length < rawLength) {
+                rawIn = new byte[Math.max(rawIn.length * 2, rawLength)];
+            }
+            readFully(channel, ByteBuffer.wrap(encodedIn, 0, encodedLength));
+            try {
+                codec.inflate(encodedIn, 0, encodedLength, rawIn, 0, rawLength);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed answer packet: " + e.getMessage());
+            }
+            return ByteBuffer.wrap(rawIn, 0, rawLength);
+        }
+
+        // 填满dst：普通报文直接从连接读取，压缩报文从解压结果中取
+        private void fill(ByteBuffer dst, ByteBuffer inflated) throws IOException {
+            if (inflated == null) {
+                readFully(channel, dst);
+                return;
+            }
+            if (inflated.remaining() < dst.remaining()) {
+                throw new IOException("Invalid answer packet");
+            }
+            int limit = inflated.limit();
+            inflated.limit(inflated.position() + dst.remaining());
+            dst.put(inflated);
+            inflated.limit(limit);
+        }
+    }
+
+    // 拒绝报文（类型9）中原因码的含义
+    private static String rejectReason(int reason) {
+        switch (reason) {
+            case 1: return "server busy";
+            case 2: return "frame too large";
+            case 3: return "server memory budget exceeded";
+            default: return "reason " + reason;
+        }
+    }
+
+    private static void flushBuffer(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by server");
+            }
+        }
+    }
+
+    private static void readFully(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = file.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    // 按与splitFile相同的规则依次产生[start, end)区间内的数据块长度。
+    // 相同的种子会重放出相同的分块序列，因此不需要把分块结果保存在内存中
+    private static class BlockSplitter {
+        private final long end;
+        private final int Lmin;
+        private final int Lmax;
+        private final Random random;
+        private long offset;
+
+        public BlockSplitter(long start, long end, int Lmin, int Lmax, long seed) {
+            this.offset = start;
+            this.end = end;
+            this.Lmin = Lmin;
+            this.Lmax = Lmax;
+            this.random = new Random(seed);
+        }
+
+        public static long count(long start, long end, int Lmin, int Lmax, long seed) {
+            BlockSplitter splitter = new BlockSplitter(start, end, Lmin, Lmax, seed);
+            long count = 0;
+            while (splitter.hasNext()) {
+                splitter.next();
+                count++;
+            }
+            return count;
+        }
+
+        public boolean hasNext() {
+            return offset < end;
+        }
+
+        // 下一个数据块在文件中的起始位置
+        public long offset() {
+            return offset;
+        }
+
+        public int next() {
+            long maxPossible = end - offset;
+            int blockSize;
+
+            if (maxPossible <= Lmax) {
+                blockSize = (int) maxPossible;
+            } else {
+                blockSize = Lmin + random.nextInt(Lmax - Lmin + 1);
+            }
+
+            offset += blockSize;
+            return blockSize;
+        }
+    }
+
+    static List<String> splitFile(String content, int Lmin, int Lmax) {
         List<String> blocks = new ArrayList<>();
         Random random = new Random();
         int index = 0;
@@ -107,7 +898,7 @@ public class reversetcpclient {
         return blocks;
     }
 
-    private static String combineReversedBlocks(List<String> reversedBlocks) {
+    static String combineReversedBlocks(List<String> reversedBlocks) {
         StringBuilder result = new StringBuilder();
         for (int i = reversedBlocks.size() - 1; i >= 0; i--) {
             result.append(reversedBlocks.get(i));
@@ -1,84 +1,1155 @@
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 
 public class reversetcpserver {
+    // 扩展能力：初始化报文和同意报文类型字段的高字节。
+    // 服务器只接受客户端请求的能力，旧客户端发送1型报文时仍收到原样的2型报文
+    static final int CAP_BATCH = 0x01;
+    static final int CAP_DEFLATE = 0x02;
+    // 会话：一条连接上依次处理多个文件，每个文件以8型文件头报文开始，客户端关闭发送方向结束会话
+    static final int CAP_SESSION = 0x04;
+    private static final int SUPPORTED_CAPS = CAP_BATCH | CAP_DEFLATE | CAP_SESSION;
+
+    // 报文头部：类型(2) + 长度或数据块数(4)；7型压缩报文另有压缩后长度(4)
+    private static final int HEADER_SIZE = 6;
+    private static final int COMPRESSED_HEADER_SIZE = 10;
+
+    // 拒绝报文：类型9 + 原因码(4)，代替同意报文或响应报文发送，随后服务器关闭连接
+    static final int REJECT_BUSY = 1;
+    static final int REJECT_FRAME_TOO_LARGE = 2;
+    static final int REJECT_MEMORY = 3;
+
+    // 以long视图访问字节数组，一次处理8个字节
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("Usage: java reversetcpserver <port>");
+            System.err.println("Usage: java reversetcpserver <port> [--mode=pool|virtual|nio] [--loops=N] [--workers=N] [--queue=N] "
+                    + "[--max-connections=N] [--max-frame=BYTES] [--connection-memory=BYTES] [--memory=BYTES] [--timeout=MS]");
             System.exit(1);
         }
 
         int port = Integer.parseInt(args[0]);
-        ExecutorService threadPool = Executors.newCachedThreadPool();
+        String mode = "pool";
+        int loops = Runtime.getRuntime().availableProcessors();
+        int workers = 256;
+        int queue = 1024;
+        int maxConnections = 10000;
+        Limits limits = new Limits();
+
+        // 解析可选参数
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--mode=")) {
+                mode = args[i].substring("--mode=".length());
+            } else if (args[i].startsWith("--loops=")) {
+                loops = Integer.parseInt(args[i].substring("--loops=".length()));
+            } else if (args[i].startsWith("--workers=")) {
+                workers = Integer.parseInt(args[i].substring("--workers=".length()));
+            } else if (args[i].startsWith("--queue=")) {
+                queue = Integer.parseInt(args[i].substring("--queue=".length()));
+            } else if (args[i].startsWith("--max-connections=")) {
+                maxConnections = Integer.parseInt(args[i].substring("--max-connections=".length()));
+            } else if (args[i].startsWith("--max-frame=")) {
+                limits.maxFrame = (int) Math.min(Integer.MAX_VALUE, parseSize(args[i].substring("--max-frame=".length())));
+            } else if (args[i].startsWith("--connection-memory=")) {
+                limits.connectionMemory = parseSize(args[i].substring("--connection-memory=".length()));
+            } else if (args[i].startsWith("--memory=")) {
+                limits.memory = parseSize(args[i].substring("--memory=".length()));
+            } else if (args[i].startsWith("--timeout=")) {
+                limits.timeoutMillis = Integer.parseInt(args[i].substring("--timeout=".length()));
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (mode.equals("nio")) {
+            limits.admission = new Semaphore(maxConnections);
+            runNio(port, loops, limits);
+            return;
+        }
+
+        ExecutorService threadPool;
+        if (mode.equals("pool")) {
+            // 固定数量的工作线程，其余已接受的连接排队等待，排队的连接超过queue个时拒绝新连接
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>());
+            executor.allowCoreThreadTimeOut(true);
+            threadPool = executor;
+            limits.admission = new Semaphore(workers + queue);
+        } else if (mode.equals("virtual")) {
+            limits.admission = new Semaphore(maxConnections);
+            threadPool = newVirtualThreadExecutor();
+            if (threadPool == null) {
+                System.err.println("Virtual threads require JDK 21 or later");
+                System.exit(1);
+            }
+        } else {
+            System.err.println("Unknown mode: " + mode);
+            System.exit(1);
+            return;
+        }
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server started on port " + port);
+            System.out.println("Server started on port " + port + " (" + mode + ")");
+            limits.watchWrites();
 
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                threadPool.execute(new ClientHandler(clientSocket));
+                if (!limits.admission.tryAcquire()) {
+                    rejectBusy(clientSocket, limits);
+                    continue;
+                }
+                threadPool.execute(new ClientHandler(clientSocket, limits));
+            }
+        } catch (IOException e) {
+            System.err.println("Server exception: " + e.getMessage());
+        }
+    }
+
+    // 每个连接一个虚拟线程；通过反射获取，使代码在JDK 21之前的版本上仍可编译
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // 连接数已满：直接回复拒绝报文并关闭发送方向，稍后再关闭套接字，
+    // 以免未读的初始化报文使关闭时发出RST，客户端来不及读到拒绝报文
+    private static void rejectBusy(Socket socket, Limits limits) {
+        try {
+            socket.getOutputStream().write(rejectPacket(REJECT_BUSY));
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            System.err.println("Reject error: " + e.getMessage());
+        }
+        limits.timer.schedule(() -> {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Socket close error: " + e.getMessage());
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
+    static byte[] rejectPacket(int reason) {
+        byte[] packet = new byte[HEADER_SIZE];
+        ByteBuffer.wrap(packet).putShort((short) 9).putInt(reason);
+        return packet;
+    }
+
+    // 解析字节数，支持k、m、g后缀
+    private static long parseSize(String value) {
+        char unit = Character.toLowerCase(value.charAt(value.length() - 1));
+        int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : 0;
+        return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+    }
+
+    // 非阻塞模式：主线程负责accept，每个核心一个事件循环处理读写
+    private static void runNio(int port, int loopCount, Limits limits) {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+
+            EventLoop[] loops = new EventLoop[Math.max(1, loopCount)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new EventLoop(limits);
+                Thread thread = new Thread(loops[i], "reverse-loop-" + i);
+                thread.start();
+            }
+            System.out.println("Server started on port " + port + " (nio, " + loops.length + " loops)");
+
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                // 连接数已满时同样交给事件循环，由它回复拒绝报文后关闭
+                loops[next].register(new NioConnection(channel, limits, limits.admission.tryAcquire()));
+                next = (next + 1) % loops.length;
             }
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
         }
     }
 
+    // 原地反转a[offset, offset + length)：两端各取8字节，翻转字节序后交换位置，
+    // 中间不足两个字的部分逐字节处理
+    static void reverse(byte[] a, int offset, int length) {
+        int i = offset;
+        int j = offset + length - 8;
+        while (j - i >= 8) {
+            long head = (long) LONGS.get(a, i);
+            long tail = (long) LONGS.get(a, j);
+            LONGS.set(a, i, Long.reverseBytes(tail));
+            LONGS.set(a, j, Long.reverseBytes(head));
+            i += 8;
+            j -= 8;
+        }
+        for (j += 7; i < j; i++, j--) {
+            byte tmp = a[i];
+            a[i] = a[j];
+            a[j] = tmp;
+        }
+    }
+
+    // 把src[srcOffset, srcOffset + length)反转后写入dst[dstOffset, dstOffset + length)
+    static void reverseCopy(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) {
+        int srcEnd = srcOffset + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = (long) LONGS.get(src, srcEnd - i - 8);
+            LONGS.set(dst, dstOffset + i, Long.reverseBytes(word));
+        }
+        for (; i < length; i++) {
+            dst[dstOffset + i] = src[srcEnd - i - 1];
+        }
+    }
+
+    // 同上，用于直接缓冲区，按绝对位置读写，不改变缓冲区的position
+    static void reverseCopy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+        int srcEnd = srcIndex + length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            dst.putLong(dstIndex + i, Long.reverseBytes(src.getLong(srcEnd - i - 8)));
+        }
+        for (; i < length; i++) {
+            dst.put(dstIndex + i, src.get(srcEnd - i - 1));
+        }
+    }
+
+    // 把frame[0, length)中完整的3型或5型请求报文原地转换为4型或6型响应报文，
+    // 返回其中的数据块数，报文无效时返回-1。用于处理解压后的报文
+    static int reverseFrame(byte[] frame, int length, int remaining, int caps) {
+        if (length < HEADER_SIZE || remaining < 1) {
+            return -1;
+        }
+        int type = (frame[0] & 0xff) << 8 | frame[1] & 0xff;
+        int n = (int) INTS.get(frame, 2);
+
+        if (type == 3) {
+            if (n != length - HEADER_SIZE) {
+                return -1;
+            }
+            reverse(frame, HEADER_SIZE, n);
+            frame[1] = 4;
+            return 1;
+        }
+
+        if (type == 5 && (caps & CAP_BATCH) != 0) {
+            if (n < 1 || n > remaining || n > (length - HEADER_SIZE) / 4) {
+                return -1;
+            }
+            // 先核对长度表与报文长度一致，再逐块反转
+            int tableEnd = HEADER_SIZE + 4 * n;
+            int pos = tableEnd;
+            for (int i = 0; i < n; i++) {
+                int blockLength = (int) INTS.get(frame, HEADER_SIZE + 4 * i);
+                if (blockLength < 0 || blockLength > length - pos) {
+                    return -1;
+                }
+                pos += blockLength;
+            }
+            if (pos != length) {
+                return -1;
+            }
+            pos = tableEnd;
+            for (int i = 0; i < n; i++) {
+                int blockLength = (int) INTS.get(frame, HEADER_SIZE + 4 * i);
+                reverse(frame, pos, blockLength);
+                pos += blockLength;
+            }
+            frame[1] = 6;
+            return n;
+        }
+        return -1;
+    }
+
+    // 资源限制：单个报文的最大长度、每个连接和全局的缓冲区内存预算、读写超时和连接数
+    private static class Limits {
+        int maxFrame = 16 << 20;
+        long connectionMemory = 64L << 20;
+        long memory = Runtime.getRuntime().maxMemory() / 2;
+        int timeoutMillis = 30000;
+        // 同时处理（含排队）的连接数上限，由运行模式决定
+        Semaphore admission;
+        // 所有连接已申请的缓冲区内存
+        final AtomicLong used = new AtomicLong();
+        // 阻塞模式下正在使用的套接字输出流，由定时器检查写超时
+        final Set<DeadlineOutputStream> writers = ConcurrentHashMap.newKeySet();
+        // 阻塞模式下检查写超时、延迟关闭被拒绝的套接字，由watchWrites创建，非阻塞模式不使用
+        ScheduledExecutorService timer;
+
+        void checkFrame(long size) throws RejectedException {
+            if (size > maxFrame) {
+                throw new RejectedException(REJECT_FRAME_TOO_LARGE,
+                        "frame of " + size + " bytes exceeds limit of " + maxFrame);
+            }
+        }
+
+        // 创建定时器，周期性关闭写操作超时的连接
+        void watchWrites() {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "reverse-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, Math.min(1000, timeoutMillis));
+            timer.scheduleAtFixedRate(() -> {
+                long now = System.nanoTime();
+                for (DeadlineOutputStream writer : writers) {
+                    writer.closeIfExpired(now);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 一个连接的缓冲区内存账户：扩容前先从连接预算和全局预算中申请增加的部分，连接关闭时全部归还
+    private static class MemoryAccount {
+        private final Limits limits;
+        private long reserved;
+
+        public MemoryAccount(Limits limits) {
+            this.limits = limits;
+        }
+
+        public void grow(long from, long to) throws RejectedException {
+            long delta = to - from;
+            if (reserved + delta > limits.connectionMemory) {
+                throw new RejectedException(REJECT_MEMORY,
+                        "connection buffers would exceed " + limits.connectionMemory + " bytes");
+            }
+            if (limits.used.addAndGet(delta) > limits.memory) {
+                limits.used.addAndGet(-delta);
+                throw new RejectedException(REJECT_MEMORY, "server buffer memory exhausted");
+            }
+            reserved += delta;
+        }
+
+        // 压缩前按最坏情况预留压缩器的输出缓冲区，使压缩过程中不再扩容
+        public void reserveDeflateOutput(DeflateCodec codec, int rawLength) throws RejectedException {
+            int bound = DeflateCodec.maxDeflatedLength(rawLength);
+            if (codec.capacity() < bound) {
+                int capacity = Math.max(bound, Math.min(codec.capacity() * 2, limits.maxFrame));
+                grow(codec.capacity(), capacity);
+                codec.ensureCapacity(capacity);
+            }
+        }
+
+        public void release() {
+            limits.used.addAndGet(-reserved);
+            reserved = 0;
+        }
+    }
+
+    // 请求超出服务器限制：以拒绝报文通知客户端后关闭连接
+    private static class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int reason;
+
+        public RejectedException(int reason, String message) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+
+    // 阻塞模式下的写超时：客户端不读取响应导致一次写操作超过期限时，由定时器关闭套接字
+    private static class DeadlineOutputStream extends FilterOutputStream {
+        private final Socket socket;
+        private final Limits limits;
+        private final long timeoutNanos;
+        // 正在进行的写操作的期限，0表示当前没有写操作
+        private volatile long deadline;
+
+        public DeadlineOutputStream(Socket socket, Limits limits) throws IOException {
+            super(socket.getOutputStream());
+            this.socket = socket;
+            this.limits = limits;
+            this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(limits.timeoutMillis);
+            limits.writers.add(this);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            deadline = System.nanoTime() + timeoutNanos;
+            try {
+                out.write(b, off, len);
+            } finally {
+                deadline = 0;
+            }
+        }
+
+        public void closeIfExpired(long now) {
+            long current = deadline;
+            if (current != 0 && now - current > 0) {
+                System.err.println("Client write timed out");
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("Socket close error: " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            limits.writers.remove(this);
+            super.close();
+        }
+    }
+
     private static class ClientHandler implements Runnable {
         private final Socket clientSocket;
+        private final Limits limits;
+        private final MemoryAccount memory;
+        // 每个连接复用的收发缓冲区，按需扩容，稳定后处理数据块不再分配内存
+        private byte[] buffer = new byte[8192];
+        private ByteBuffer frame = ByteBuffer.wrap(buffer);
+        // 压缩报文使用的编解码器和缓冲区，协商了压缩能力时才创建
+        private DeflateCodec codec;
+        private byte[] encoded;
+        private final byte[] compressedHeader = new byte[COMPRESSED_HEADER_SIZE];
+        private final ByteBuffer compressedFrame = ByteBuffer.wrap(compressedHeader);
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, Limits limits) {
             this.clientSocket = socket;
+            this.limits = limits;
+            this.memory = new MemoryAccount(limits);
         }
 
         @Override
         public void run() {
-            try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-                 DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-
-                // 读取初始化报文
-                short type = in.readShort();
-                if (type != 1) {
-                    System.err.println("Invalid initialization packet");
-                    return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+                 DeadlineOutputStream socketOut = new DeadlineOutputStream(clientSocket, limits);
+                 OutputStream out = new BufferedOutputStream(socketOut, 65536)) {
+                clientSocket.setSoTimeout(limits.timeoutMillis);
+                try {
+                    memory.grow(0, buffer.length);
+                    serve(in, out);
+                } catch (RejectedException e) {
+                    System.err.println("Rejected client: " + e.getMessage());
+                    reject(in, out, e.reason);
                 }
-                int blockCount = in.readInt();
+            } catch (SocketTimeoutException e) {
+                System.err.println("Client timed out");
+            } catch (IOException e) {
+                System.err.println("Client handling exception: " + e.getMessage());
+            } finally {
+                if (codec != null) {
+                    codec.close();
+                }
+                memory.release();
+                limits.admission.release();
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    System.err.println("Socket close error: " + e.getMessage());
+                }
+            }
+        }
+
+        // 握手后处理客户端的全部请求
+        private void serve(DataInputStream in, OutputStream out) throws IOException {
+            // 读取初始化报文，高字节为客户端请求的扩展能力
+            short type = in.readShort();
+            if ((type & 0xff) != 1) {
+                System.err.println("Invalid initialization packet");
+                return;
+            }
+            int caps = (type >> 8) & SUPPORTED_CAPS;
+            int blockCount = in.readInt();
+            if ((caps & CAP_DEFLATE) != 0) {
+                memory.grow(0, 2 * DeflateCodec.INITIAL_OUTPUT_SIZE);
+                codec = new DeflateCodec();
+                encoded = new byte[DeflateCodec.INITIAL_OUTPUT_SIZE];
+            }
 
-                // 发送同意报文
-                out.writeShort(2);
-                out.flush();
+            // 发送同意报文，高字节为接受的扩展能力
+            out.write(new byte[]{(byte) caps, 2});
+            out.flush();
+
+            // 处理每个数据块
+            int remaining = blockCount;
+            while (true) {
+                if (remaining <= 0) {
+                    if ((caps & CAP_SESSION) == 0) {
+                        break;
+                    }
+                    // 会话模式下读取下一个文件头报文，在报文边界上读到流结束表示会话正常结束
+                    int high = in.read();
+                    if (high < 0) {
+                        break;
+                    }
+                    type = (short) (high << 8 | in.readUnsignedByte());
+                    remaining = in.readInt();
+                    if (type != 8 || remaining < 0) {
+                        System.err.println("Invalid file header packet");
+                        break;
+                    }
+                    // 上一个文件最后的响应可能因文件头已到达而尚未发出
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                    continue;
+                }
 
-                // 处理每个数据块
-                for (int i = 0; i < blockCount; i++) {
-                    type = in.readShort();
-                    if (type != 3) {
+                type = in.readShort();
+                if (type == 5 && (caps & CAP_BATCH) != 0 || type == 7 && (caps & CAP_DEFLATE) != 0) {
+                    int count = type == 5 ? handleBatch(in, out, remaining) : handleCompressed(in, out, caps, remaining);
+                    if (count < 0) {
                         System.err.println("Invalid request packet");
                         break;
                     }
+                    remaining -= count;
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                    continue;
+                }
+                if (type != 3) {
+                    System.err.println("Invalid request packet");
+                    break;
+                }
 
-                    int length = in.readInt();
-                    byte[] data = new byte[length];
-                    in.readFully(data);
+                int length = in.readInt();
+                if (length < 0) {
+                    System.err.println("Invalid request packet");
+                    break;
+                }
+                limits.checkFrame(HEADER_SIZE + (long) length);
+                ensureCapacity(HEADER_SIZE + length);
+                in.readFully(buffer, HEADER_SIZE, length);
+
+                // 原地反转数据
+                reverse(buffer, HEADER_SIZE, length);
 
-                    // 反转数据
-                    String original = new String(data, StandardCharsets.US_ASCII);
-                    String reversed = new StringBuilder(original).reverse().toString();
+                // 发送响应报文：头部写在数据前面，整帧一次写出，
+                // 避免小包延迟，也不在DataOutputStream中逐字段写套接字
+                frame.putShort(0, (short) 4).putInt(2, length);
+                out.write(buffer, 0, HEADER_SIZE + length);
 
-                    // 发送响应报文
-                    out.writeShort(4);
-                    out.writeInt(reversed.length());
-                    out.writeBytes(reversed);
+                // 客户端流水线发送时，已到达的请求处理完再统一发出响应
+                if (in.available() == 0) {
                     out.flush();
                 }
-            } catch (IOException e) {
-                System.err.println("Client handling exception: " + e.getMessage());
-            } finally {
+                remaining--;
+            }
+            out.flush();
+        }
+
+        // 发送拒绝报文并关闭发送方向，再读完客户端已发出的数据后才关闭套接字，
+        // 否则接收缓冲区中未读的数据会使关闭时发出RST，客户端可能来不及读到拒绝报文
+        private void reject(DataInputStream in, OutputStream out, int reason) throws IOException {
+            out.write(rejectPacket(reason));
+            out.flush();
+            clientSocket.shutdownOutput();
+            clientSocket.setSoTimeout(1000);
+            long drained = 0;
+            int n;
+            try {
+                while (drained <= limits.maxFrame && (n = in.read(buffer)) >= 0) {
+                    drained += n;
+                }
+            } catch (SocketTimeoutException e) {
+                // 客户端迟迟不关闭连接，直接关闭
+            }
+        }
+
+        // 处理5型批量请求报文：n个数据块的长度表之后是各块数据。
+        // 回复的6型报文使用相同的长度表，各块在原位置分别反转后整帧一次写出。
+        // 返回处理的数据块数，报文无效时返回-1
+        private int handleBatch(DataInputStream in, OutputStream out, int remaining) throws IOException {
+            int count = in.readInt();
+            if (count < 1 || count > remaining || count > (Integer.MAX_VALUE - HEADER_SIZE) / 4) {
+                return -1;
+            }
+            int tableEnd = HEADER_SIZE + 4 * count;
+            limits.checkFrame(tableEnd);
+            ensureCapacity(tableEnd);
+            in.readFully(buffer, HEADER_SIZE, 4 * count);
+
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                int length = frame.getInt(HEADER_SIZE + 4 * i);
+                if (length < 0) {
+                    return -1;
+                }
+                total += length;
+            }
+            limits.checkFrame(tableEnd + total);
+            if (total > Integer.MAX_VALUE - tableEnd) {
+                return -1;
+            }
+            ensureCapacity(tableEnd + (int) total);
+            in.readFully(buffer, tableEnd, (int) total);
+
+            int pos = tableEnd;
+            for (int i = 0; i < count; i++) {
+                int length = frame.getInt(HEADER_SIZE + 4 * i);
+                reverse(buffer, pos, length);
+                pos += length;
+            }
+            frame.putShort(0, (short) 6).putInt(2, count);
+            out.write(buffer, 0, pos);
+            return count;
+        }
+
+        // 处理7型压缩报文：解压出完整的3型或5型请求报文，原地转换为响应报文后再压缩，
+        // 以7型报文回复。返回处理的数据块数，报文无效时返回-1
+        private int handleCompressed(DataInputStream in, OutputStream out, int caps, int remaining) throws IOException {
+            int rawLength = in.readInt();
+            int encodedLength = in.readInt();
+            if (rawLength < HEADER_SIZE || encodedLength < 0) {
+                return -1;
+            }
+            limits.checkFrame(rawLength);
+            limits.checkFrame(COMPRESSED_HEADER_SIZE + (long) encodedLength);
+            if (encoded.length < encodedLength) {
+                int size = Math.max(encoded.length * 2, encodedLength);
+                memory.grow(encoded.length, size);
+                encoded = new byte[size];
+            }
+            in.readFully(encoded, 0, encodedLength);
+            ensureCapacity(rawLength);
+            try {
+                codec.inflate(encoded, 0, encodedLength, buffer, 0, rawLength);
+            } catch (DataFormatException e) {
+                return -1;
+            }
+
+            int count = reverseFrame(buffer, rawLength, remaining, caps);
+            if (count < 0) {
+                return -1;
+            }
+            codec.reset();
+            memory.reserveDeflateOutput(codec, rawLength);
+            codec.deflate(buffer, 0, rawLength);
+            int n = codec.flush();
+            compressedFrame.putShort(0, (short) 7).putInt(2, rawLength).putInt(6, n);
+            out.write(compressedHeader);
+            out.write(codec.buffer(), 0, n);
+            return count;
+        }
+
+        // 扩容时保留已读入的内容，超出内存预算时拒绝
+        private void ensureCapacity(int size) throws RejectedException {
+            if (buffer.length < size) {
+                int capacity = Math.max(size, Math.min(buffer.length * 2, limits.maxFrame));
+                memory.grow(buffer.length, capacity);
+                buffer = Arrays.copyOf(buffer, capacity);
+                frame = ByteBuffer.wrap(buffer);
+            }
+        }
+    }
+
+    // 单线程事件循环，负责一组连接的全部读写
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioConnection> pending = new ConcurrentLinkedQueue<>();
+        private final Limits limits;
+        // 检查空闲连接的间隔
+        private final long checkInterval;
+        private long lastCheck = System.nanoTime();
+
+        public EventLoop(Limits limits) throws IOException {
+            this.selector = Selector.open();
+            this.limits = limits;
+            this.checkInterval = Math.max(1, Math.min(1000, limits.timeoutMillis));
+        }
+
+        public void register(NioConnection conn) {
+            pending.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
                 try {
-                    clientSocket.close();
+                    selector.select(checkInterval);
+
+                    // 注册新连接
+                    NioConnection pendingConn;
+                    while ((pendingConn = pending.poll()) != null) {
+                        try {
+                            pendingConn.register(selector);
+                        } catch (IOException e) {
+                            System.err.println("Client handling exception: " + e.getMessage());
+                            pendingConn.close();
+                        }
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        NioConnection conn = (NioConnection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                conn.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Client handling exception: " + e.getMessage());
+                            conn.close();
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastCheck >= TimeUnit.MILLISECONDS.toNanos(checkInterval)) {
+                        lastCheck = now;
+                        closeIdle(now);
+                    }
                 } catch (IOException e) {
-                    System.err.println("Socket close error: " + e.getMessage());
+                    System.err.println("Event loop exception: " + e.getMessage());
+                }
+            }
+        }
+
+        // 关闭超过超时时间没有任何读写进展的连接；准入时被拒绝的连接只等待REFUSAL_LINGER
+        private void closeIdle(long now) {
+            long timeout = TimeUnit.MILLISECONDS.toNanos(limits.timeoutMillis);
+            for (SelectionKey key : selector.keys()) {
+                NioConnection conn = (NioConnection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (conn.refused()) {
+                    if (now - conn.lastActive > NioConnection.REFUSAL_LINGER) {
+                        conn.close();
+                    }
+                } else if (now - conn.lastActive > timeout) {
+                    System.err.println("Client timed out");
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    // 单个非阻塞连接：从ByteBuffer中增量解析1/3型报文，回写2/4型报文
+    private static class NioConnection {
+        private static final int INITIAL_BUFFER_SIZE = 8192;
+        // 准入时即被拒绝的连接回复的拒绝报文，所有连接共用，各自通过duplicate记录写出位置
+        private static final ByteBuffer BUSY_REPLY = rejectReply(REJECT_BUSY);
+        private static final ByteBuffer MEMORY_REPLY = rejectReply(REJECT_MEMORY);
+        // 被拒绝的连接读取并丢弃客户端数据用的缓冲区，每个事件循环线程一个
+        private static final ThreadLocal<ByteBuffer> DISCARD =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE));
+        // 拒绝报文发出后等待客户端关闭的最长时间，与阻塞模式一致
+        private static final long REFUSAL_LINGER = TimeUnit.SECONDS.toNanos(1);
+
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private final Limits limits;
+        private final MemoryAccount memory;
+        // 是否占用了连接数名额，未占用的连接只回复拒绝报文
+        private final boolean admitted;
+        // 已发出拒绝报文，此后到达的数据全部丢弃
+        private boolean rejected = false;
+        // 最近一次读写有进展的时间
+        long lastActive = System.nanoTime();
+        // 使用直接缓冲区，读写套接字时不必再经过一次堆内复制；获准入并申请到内存后才分配
+        private ByteBuffer in;
+        private ByteBuffer out;
+        // 准入时即被拒绝的连接待发出的拒绝报文，发完后关闭发送方向，等客户端关闭或超时后关闭连接
+        private ByteBuffer refusal;
+        private boolean initialized = false;
+        private int caps;
+        private int remainingBlocks;
+        // 当前报文尚未收全时所需的字节数
+        private int need;
+        // 客户端已关闭发送方向，处理完缓冲区中的报文并发完响应后关闭连接
+        private boolean inputClosed = false;
+        // 压缩报文使用的编解码器和解压缓冲区，协商了压缩能力时才创建
+        private DeflateCodec codec;
+        private byte[] encoded;
+        private byte[] raw;
+
+        public NioConnection(SocketChannel channel, Limits limits, boolean admitted) {
+            this.channel = channel;
+            this.limits = limits;
+            this.memory = new MemoryAccount(limits);
+            this.admitted = admitted;
+        }
+
+        public void register(Selector selector) throws IOException {
+            key = channel.register(selector, 0, this);
+            try {
+                if (!admitted) {
+                    throw new RejectedException(REJECT_BUSY, "too many connections");
+                }
+                memory.grow(0, 2L * INITIAL_BUFFER_SIZE);
+            } catch (RejectedException e) {
+                System.err.println("Rejected client: " + e.getMessage());
+                refusal = (e.reason == REJECT_BUSY ? BUSY_REPLY : MEMORY_REPLY).duplicate();
+                flushRefusal();
+                return;
+            }
+            in = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+            out = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        boolean refused() {
+            return refusal != null;
+        }
+
+        private static ByteBuffer rejectReply(int reason) {
+            ByteBuffer reply = ByteBuffer.allocateDirect(HEADER_SIZE);
+            reply.put(rejectPacket(reason)).flip();
+            return reply.asReadOnlyBuffer();
+        }
+
+        // 写出准入拒绝报文后关闭发送方向，此后丢弃客户端发来的数据，等客户端关闭或超时后再关闭，
+        // 避免关闭时接收缓冲区中仍有未读数据而以RST丢弃拒绝报文。不为这类连接分配任何缓冲区
+        private void flushRefusal() throws IOException {
+            channel.write(refusal);
+            if (refusal.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else {
+                channel.shutdownOutput();
+                lastActive = System.nanoTime();
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        public void onReadable() throws IOException {
+            if (refusal != null) {
+                ByteBuffer discard = DISCARD.get();
+                discard.clear();
+                if (channel.read(discard) < 0) {
+                    close();
                 }
+                return;
+            }
+            int n = channel.read(in);
+            if (n < 0) {
+                inputClosed = true;
+            }
+            // 拒绝报文发完后才会重新关注可读事件，此时只需丢弃数据并等待客户端关闭
+            if (rejected) {
+                in.clear();
+                if (inputClosed) {
+                    close();
+                }
+                return;
+            }
+            if (n > 0) {
+                lastActive = System.nanoTime();
+            }
+
+            boolean open;
+            try {
+                open = process();
+            } catch (RejectedException e) {
+                reject(e);
+                open = true;
+            }
+            if (open) {
+                flush();
+            }
+        }
+
+        // 在已生成的响应之后追加拒绝报文，发完后关闭发送方向
+        private void reject(RejectedException e) {
+            System.err.println("Rejected client: " + e.getMessage());
+            if (out.remaining() < HEADER_SIZE) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(out.position() + HEADER_SIZE);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.putShort((short) 9);
+            out.putInt(e.reason);
+            rejected = true;
+            in.clear();
+        }
+
+        public void onWritable() throws IOException {
+            if (refusal != null) {
+                flushRefusal();
+            } else {
+                flush();
+            }
+        }
+
+        // 解析缓冲区中所有完整报文，返回false表示连接已关闭
+        private boolean process() throws RejectedException {
+            in.flip();
+            need = 0;
+
+            while (true) {
+                if (!initialized) {
+                    // 读取初始化报文，高字节为客户端请求的扩展能力
+                    if (in.remaining() < HEADER_SIZE) {
+                        break;
+                    }
+                    short type = in.getShort();
+                    if ((type & 0xff) != 1) {
+                        System.err.println("Invalid initialization packet");
+                        close();
+                        return false;
+                    }
+                    caps = (type >> 8) & SUPPORTED_CAPS;
+                    remainingBlocks = in.getInt();
+                    initialized = true;
+                    if ((caps & CAP_DEFLATE) != 0) {
+                        memory.grow(0, 2 * INITIAL_BUFFER_SIZE + DeflateCodec.INITIAL_OUTPUT_SIZE);
+                        codec = new DeflateCodec();
+                        encoded = new byte[INITIAL_BUFFER_SIZE];
+                        raw = new byte[INITIAL_BUFFER_SIZE];
+                    }
+
+                    // 发送同意报文，高字节为接受的扩展能力
+                    ensureOut(2);
+                    out.putShort((short) (caps << 8 | 2));
+                    continue;
+                }
+
+                if (in.remaining() < HEADER_SIZE) {
+                    break;
+                }
+                if (remainingBlocks <= 0) {
+                    if ((caps & CAP_SESSION) == 0) {
+                        break;
+                    }
+                    // 会话模式下读取下一个文件头报文
+                    short type = in.getShort();
+                    remainingBlocks = in.getInt();
+                    if (type != 8 || remainingBlocks < 0) {
+                        System.err.println("Invalid file header packet");
+                        close();
+                        return false;
+                    }
+                    continue;
+                }
+
+                int pos = in.position();
+                short type = in.getShort(pos);
+                int result;
+                if (type == 3) {
+                    result = processRequest(pos);
+                } else if (type == 5 && (caps & CAP_BATCH) != 0) {
+                    result = processBatch(pos);
+                } else if (type == 7 && (caps & CAP_DEFLATE) != 0) {
+                    result = processCompressed(pos);
+                } else {
+                    result = -1;
+                }
+                if (result < 0) {
+                    System.err.println("Invalid request packet");
+                    close();
+                    return false;
+                }
+                if (result == 0) {
+                    break;
+                }
+            }
+
+            in.compact();
+            // 报文尚未收全时，必要时扩大缓冲区
+            if (need > in.capacity()) {
+                memory.grow(in.capacity(), need);
+                ByteBuffer bigger = ByteBuffer.allocateDirect(need);
+                in.flip();
+                bigger.put(in);
+                in = bigger;
+            }
+            return true;
+        }
+
+        // 处理pos处的3型报文：返回1表示已处理，0表示尚未收全，-1表示报文无效
+        private int processRequest(int pos) throws RejectedException {
+            int length = in.getInt(pos + 2);
+            if (length < 0) {
+                return -1;
+            }
+            limits.checkFrame(HEADER_SIZE + (long) length);
+            if (in.remaining() < HEADER_SIZE + length) {
+                need = HEADER_SIZE + length;
+                return 0;
+            }
+
+            // 反转数据并写入响应报文
+            ensureOut(HEADER_SIZE + length);
+            out.putShort((short) 4);
+            out.putInt(length);
+            reverseCopy(in, pos + HEADER_SIZE, out, out.position(), length);
+            out.position(out.position() + length);
+            in.position(pos + HEADER_SIZE + length);
+            remainingBlocks--;
+            return 1;
+        }
+
+        // 处理pos处的5型批量报文，回复长度表相同、各块分别反转的6型报文，返回值同上
+        private int processBatch(int pos) throws RejectedException {
+            int count = in.getInt(pos + 2);
+            if (count < 1 || count > remainingBlocks || count > (Integer.MAX_VALUE - HEADER_SIZE) / 4) {
+                return -1;
+            }
+            int tableEnd = HEADER_SIZE + 4 * count;
+            limits.checkFrame(tableEnd);
+            if (in.remaining() < tableEnd) {
+                need = tableEnd;
+                return 0;
+            }
+
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt(pos + HEADER_SIZE + 4 * i);
+                if (length < 0) {
+                    return -1;
+                }
+                total += length;
+            }
+            limits.checkFrame(tableEnd + total);
+            if (total > Integer.MAX_VALUE - tableEnd) {
+                return -1;
+            }
+            if (in.remaining() < tableEnd + total) {
+                need = tableEnd + (int) total;
+                return 0;
+            }
+
+            ensureOut(tableEnd + (int) total);
+            out.putShort((short) 6);
+            out.putInt(count);
+            int src = pos + tableEnd;
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt(pos + HEADER_SIZE + 4 * i);
+                out.putInt(length);
+            }
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt(pos + HEADER_SIZE + 4 * i);
+                reverseCopy(in, src, out, out.position(), length);
+                out.position(out.position() + length);
+                src += length;
+            }
+            in.position(src);
+            remainingBlocks -= count;
+            return 1;
+        }
+
+        // 处理pos处的7型压缩报文，解压后按3型或5型报文处理，回复压缩的响应报文，返回值同上
+        private int processCompressed(int pos) throws RejectedException {
+            if (in.remaining() < COMPRESSED_HEADER_SIZE) {
+                need = COMPRESSED_HEADER_SIZE;
+                return 0;
+            }
+            int rawLength = in.getInt(pos + 2);
+            int encodedLength = in.getInt(pos + 6);
+            if (rawLength < HEADER_SIZE || encodedLength < 0 || encodedLength > Integer.MAX_VALUE - COMPRESSED_HEADER_SIZE) {
+                return -1;
+            }
+            limits.checkFrame(rawLength);
+            limits.checkFrame(COMPRESSED_HEADER_SIZE + (long) encodedLength);
+            if (in.remaining() < COMPRESSED_HEADER_SIZE + encodedLength) {
+                need = COMPRESSED_HEADER_SIZE + encodedLength;
+                return 0;
+            }
+
+            if (encoded.length < encodedLength) {
+                int size = Math.max(encodedLength, Math.min(encoded.length * 2, limits.maxFrame));
+                memory.grow(encoded.length, size);
+                encoded = new byte[size];
+            }
+            if (raw.length < rawLength) {
+                int size = Math.max(rawLength, Math.min(raw.length * 2, limits.maxFrame));
+                memory.grow(raw.length, size);
+                raw = new byte[size];
+            }
+            in.duplicate().position(pos + COMPRESSED_HEADER_SIZE).get(encoded, 0, encodedLength);
+            try {
+                codec.inflate(encoded, 0, encodedLength, raw, 0, rawLength);
+            } catch (DataFormatException e) {
+                return -1;
+            }
+
+            int count = reverseFrame(raw, rawLength, remainingBlocks, caps);
+            if (count < 0) {
+                return -1;
+            }
+            codec.reset();
+            memory.reserveDeflateOutput(codec, rawLength);
+            codec.deflate(raw, 0, rawLength);
+            int n = codec.flush();
+            ensureOut(COMPRESSED_HEADER_SIZE + n);
+            out.putShort((short) 7);
+            out.putInt(rawLength);
+            out.putInt(n);
+            out.put(codec.buffer(), 0, n);
+            in.position(pos + COMPRESSED_HEADER_SIZE + encodedLength);
+            remainingBlocks -= count;
+            return 1;
+        }
+
+        private void ensureOut(int size) throws RejectedException {
+            if (out.remaining() < size) {
+                int capacity = Math.max(out.position() + size, Math.min(out.capacity() * 2, limits.maxFrame));
+                memory.grow(out.capacity(), capacity);
+                ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+        }
+
+        // 尽量写出待发送数据，写不完时暂停读取等待可写事件
+        private void flush() throws IOException {
+            out.flip();
+            if (channel.write(out) > 0 && !rejected) {
+                lastActive = System.nanoTime();
+            }
+            out.compact();
+
+            if (out.position() > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (inputClosed || initialized && remainingBlocks <= 0 && (caps & CAP_SESSION) == 0) {
+                close();
+            } else if (rejected) {
+                // 拒绝报文已发出，等客户端关闭连接或超时后再关闭，避免关闭时以RST丢弃拒绝报文
+                channel.shutdownOutput();
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        public void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            memory.release();
+            if (admitted) {
+                limits.admission.release();
+            }
+            if (codec != null) {
+                codec.close();
+                codec = null;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Socket close error: " + e.getMessage());
             }
         }
     }
@@ -0,0 +1,158 @@
+// 拥塞控制算法：根据确认和丢包信号调整拥塞窗口（字节）。客户端的可发送量取拥塞窗口和接收方通告窗口中的较小值
+public interface CongestionControl {
+    // RFC 3465：一个确认最多按2个MSS计入窗口增长，接收方延迟确认（每两个包确认一次）时窗口仍按原来的速度增长
+    int ABC_LIMIT = 2;
+
+    String name();
+
+    // 当前拥塞窗口（字节）
+    int window();
+
+    // 慢启动阈值（字节）
+    int ssthresh();
+
+    // 累积确认推进了ackedBytes字节
+    void onAck(int ackedBytes, double srttMillis, long now);
+
+    // 快速重传检测到丢包，每个恢复期（丢包时已发出的数据被全部确认之前）只调用一次
+    void onLoss(int flightSize, long now);
+
+    // 最早的未确认包重传超时
+    void onTimeout(int flightSize, long now);
+
+    // 按名称创建：reno、cubic或fixed（固定窗口，即原来的行为）
+    static CongestionControl create(String name, int mss, int maxWindow) {
+        switch (name) {
+            case "reno": return new Reno(mss);
+            case "cubic": return new Cubic(mss);
+            case "fixed": return new Fixed(maxWindow);
+            default: throw new IllegalArgumentException("未知的拥塞控制算法: " + name);
+        }
+    }
+
+    // RFC 6928的初始窗口：min(10*MSS, max(2*MSS, 14600))
+    static int initialWindow(int mss) {
+        return Math.min(10 * mss, Math.max(2 * mss, 14600));
+    }
+
+    // RFC 5681：慢启动按确认的字节数增长（每个确认至多ABC_LIMIT个MSS），拥塞避免每个RTT增加约一个MSS；丢包时窗口减半
+    class Reno implements CongestionControl {
+        private final int mss;
+        private double cwnd;
+        private int ssthresh = Integer.MAX_VALUE;
+
+        public Reno(int mss) {
+            this.mss = mss;
+            this.cwnd = initialWindow(mss);
+        }
+
+        public String name() { return "reno"; }
+        public int window() { return (int) cwnd; }
+        public int ssthresh() { return ssthresh; }
+
+        public void onAck(int ackedBytes, double srttMillis, long now) {
+            int counted = Math.min(ackedBytes, ABC_LIMIT * mss);
+            if (cwnd < ssthresh) {
+                cwnd += counted;
+            } else {
+                cwnd += (double) mss * counted / cwnd;
+            }
+        }
+
+        public void onLoss(int flightSize, long now) {
+            ssthresh = Math.max(flightSize / 2, 2 * mss);
+            cwnd = ssthresh;
+        }
+
+        public void onTimeout(int flightSize, long now) {
+            ssthresh = Math.max(flightSize / 2, 2 * mss);
+            cwnd = mss;
+        }
+    }
+
+    // RFC 8312：拥塞避免阶段窗口按 W(t) = C(t-K)^3 + Wmax 增长，与RTT无关；
+    // 同时估计Reno在相同时间内能达到的窗口（TCP友好区域），取两者中较大的值
+    class Cubic implements CongestionControl {
+        private static final double C = 0.4;
+        private static final double BETA = 0.7;
+
+        private final int mss;
+        // 以下窗口均以MSS为单位
+        private double cwnd;
+        private double ssthresh = Double.MAX_VALUE;
+        private double wMax;
+        private double k;
+        private double wEst;
+        private long epochStart = -1;
+
+        public Cubic(int mss) {
+            this.mss = mss;
+            this.cwnd = (double) initialWindow(mss) / mss;
+        }
+
+        public String name() { return "cubic"; }
+        public int window() { return (int) (cwnd * mss); }
+        public int ssthresh() { return ssthresh >= Integer.MAX_VALUE / mss ? Integer.MAX_VALUE : (int) (ssthresh * mss); }
+
+        public void onAck(int ackedBytes, double srttMillis, long now) {
+            double segments = (double) Math.min(ackedBytes, ABC_LIMIT * mss) / mss;
+            if (cwnd < ssthresh) {
+                cwnd += segments;
+                return;
+            }
+
+            // 新的拥塞避免阶段从第一个确认开始计时
+            if (epochStart < 0) {
+                epochStart = now;
+                if (cwnd < wMax) {
+                    k = Math.cbrt((wMax - cwnd) / C);
+                } else {
+                    k = 0;
+                    wMax = cwnd;
+                }
+                wEst = cwnd;
+            }
+
+            // 预测一个RTT之后的目标窗口
+            double t = (now - epochStart) / 1e9 + srttMillis / 1e3;
+            double target = C * Math.pow(t - k, 3) + wMax;
+            if (target > cwnd) {
+                cwnd += (target - cwnd) / cwnd * segments;
+            } else {
+                cwnd += 0.01 * segments / cwnd;
+            }
+
+            wEst += 3 * (1 - BETA) / (1 + BETA) * segments / cwnd;
+            cwnd = Math.max(cwnd, wEst);
+        }
+
+        public void onLoss(int flightSize, long now) {
+            epochStart = -1;
+            // 快速收敛：窗口还没恢复到上次的Wmax就再次丢包时，进一步降低Wmax，给新连接让出带宽
+            wMax = cwnd < wMax ? cwnd * (1 + BETA) / 2 : cwnd;
+            cwnd = Math.max(cwnd * BETA, 2);
+            ssthresh = cwnd;
+        }
+
+        public void onTimeout(int flightSize, long now) {
+            onLoss(flightSize, now);
+            cwnd = 1;
+        }
+    }
+
+    // 固定窗口，不响应拥塞信号
+    class Fixed implements CongestionControl {
+        private final int window;
+
+        public Fixed(int window) {
+            this.window = window;
+        }
+
+        public String name() { return "fixed"; }
+        public int window() { return window; }
+        public int ssthresh() { return Integer.MAX_VALUE; }
+        public void onAck(int ackedBytes, double srttMillis, long now) { }
+        public void onLoss(int flightSize, long now) { }
+        public void onTimeout(int flightSize, long now) { }
+    }
+}
\ No newline at end of file
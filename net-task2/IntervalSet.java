@@ -0,0 +1,89 @@
+import java.util.Arrays;
+
+// 有序、互不重叠也不相邻的区间[start, end)集合，用两个基本类型数组保存，不需要装箱。
+// 端点是64位的字节偏移，不受报文中32位序列号回绕的影响。
+// 接收方用它记录已收到的乱序数据：区间数只与数据中的空洞数有关，与已传输的数据量无关
+public class IntervalSet {
+    private long[] starts;
+    private long[] ends;
+    private int size;
+
+    public IntervalSet() {
+        this(16);
+    }
+
+    public IntervalSet(int capacity) {
+        starts = new long[Math.max(1, capacity)];
+        ends = new long[starts.length];
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public long start(int i) { return starts[i]; }
+    public long end(int i) { return ends[i]; }
+
+    // 加入[start, end)，与重叠或相邻的区间合并
+    public void add(long start, long end) {
+        if (start >= end) {
+            return;
+        }
+        int lo = firstEndingAtOrAfter(start);
+        int hi = lo;
+        while (hi < size && starts[hi] <= end) {
+            start = Math.min(start, starts[hi]);
+            end = Math.max(end, ends[hi]);
+            hi++;
+        }
+
+        if (hi == lo) {
+            // 没有可合并的区间，在lo处插入
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            System.arraycopy(starts, lo, starts, lo + 1, size - lo);
+            System.arraycopy(ends, lo, ends, lo + 1, size - lo);
+            size++;
+        } else {
+            // [lo, hi)合并成一个，删除多出的区间
+            System.arraycopy(starts, hi, starts, lo + 1, size - hi);
+            System.arraycopy(ends, hi, ends, lo + 1, size - hi);
+            size -= hi - lo - 1;
+        }
+        starts[lo] = start;
+        ends[lo] = end;
+    }
+
+    // [start, end)是否整个在集合中
+    public boolean covers(long start, long end) {
+        int i = firstEndingAtOrAfter(start + 1);
+        return i < size && starts[i] <= start && ends[i] >= end;
+    }
+
+    // 移除从position起（含position）连续的第一个区间，返回连续数据的新末尾；没有这样的区间时返回position
+    public long advance(long position) {
+        if (size == 0 || starts[0] > position) {
+            return position;
+        }
+        long end = Math.max(position, ends[0]);
+        size--;
+        System.arraycopy(starts, 1, starts, 0, size);
+        System.arraycopy(ends, 1, ends, 0, size);
+        return end;
+    }
+
+    // 二分查找第一个end >= value的区间
+    private int firstEndingAtOrAfter(long value) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ends[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
\ No newline at end of file
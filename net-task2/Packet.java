@@ -1,5 +1,12 @@
+import java.io.EOFException;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Checksum;
 
+// 报文以享元方式访问：头部字段直接按绝对位置读写底层ByteBuffer，负载不单独复制。
+// 发送方从Pool取得报文，在其自带的缓冲区中编码；接收方用view()把同一个Packet对象指向收到的缓冲区，
+// 稳定后收发路径不再为每个报文分配内存
 public class Packet {
     // 报文类型
     public static final byte SYN = 0x1;
@@ -8,57 +15,228 @@ public class Packet {
     public static final byte DATA = 0x8;
     public static final byte FIN = 0x10;
 
-    // 头部长度 (1+4+4+8 = 17字节)
-    private byte type;
-    private int seqNumber;    // 序列号（字节偏移）
-    private int ackNumber;    // 确认号（字节偏移）
-    private long timestamp;   // 发送时间戳
-    private byte[] payload;   // 数据负载
+    // 头部长度 (1+4+4+8+4+4 = 25字节)
+    public static final int HEADER_SIZE = 25;
+    private static final int SEQ_OFFSET = 1;        // 序列号：初始序列号加字节偏移，按32位回绕
+    private static final int ACK_OFFSET = 5;        // 确认号：同上
+    private static final int TIMESTAMP_OFFSET = 9;  // 发送时间戳
+    private static final int WINDOW_OFFSET = 17;    // 接收窗口：确认报文中通告接收方还能缓存的字节数
+    private static final int CONNECTION_OFFSET = 21; // 连接ID：客户端建立连接时选定，服务器据此区分同一地址上的会话
+
+    // 确认报文的负载为SACK块：每块是接收方已收到的一段[起始字节, 结束字节)，各占4字节
+    public static final int MAX_SACK_BLOCKS = 4;
+    private static final int SACK_BLOCK_SIZE = 8;
+
+    // 一个UDP数据报（IPv4）最多65507字节，减去头部即为负载上限
+    public static final int MAX_PAYLOAD = 65507 - HEADER_SIZE;
+
+    // 完整报文位于frame的[0, limit)
+    private ByteBuffer frame;
 
     public Packet(byte type, int seqNumber, int ackNumber, byte[] payload) {
-        this.type = type;
-        this.seqNumber = seqNumber;
-        this.ackNumber = ackNumber;
-        this.payload = payload;
-        this.timestamp = System.currentTimeMillis();
+        int payloadLength = (payload != null) ? payload.length : 0;
+        this.frame = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        set(type, seqNumber, ackNumber, System.currentTimeMillis());
+        if (payload != null) {
+            setPayload(payload, 0, payloadLength);
+        }
+    }
+
+    private Packet(ByteBuffer frame) {
+        this.frame = frame;
+    }
+
+    // 创建自带缓冲区的报文，负载最多payloadCapacity字节
+    public static Packet allocate(int payloadCapacity, boolean direct) {
+        int capacity = HEADER_SIZE + payloadCapacity;
+        return new Packet(direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+    }
+
+    // 写入头部，接收窗口和连接ID置0、负载清空；之后可用setWindow、setConnectionId和setPayload写入
+    public Packet set(byte type, int seqNumber, int ackNumber, long timestamp) {
+        frame.clear();
+        frame.put(0, type);
+        frame.putInt(SEQ_OFFSET, seqNumber);
+        frame.putInt(ACK_OFFSET, ackNumber);
+        frame.putLong(TIMESTAMP_OFFSET, timestamp);
+        frame.putInt(WINDOW_OFFSET, 0);
+        frame.putInt(CONNECTION_OFFSET, 0);
+        frame.limit(HEADER_SIZE);
+        return this;
+    }
+
+    public Packet setWindow(int window) {
+        frame.putInt(WINDOW_OFFSET, window);
+        return this;
+    }
+
+    public Packet setConnectionId(int connectionId) {
+        frame.putInt(CONNECTION_OFFSET, connectionId);
+        return this;
+    }
+
+    // 重传时更新发送时间戳，对端回显后据此计算这一次发送的RTT
+    public Packet setTimestamp(long timestamp) {
+        frame.putLong(TIMESTAMP_OFFSET, timestamp);
+        return this;
+    }
+
+    public Packet setPayload(byte[] src, int offset, int length) {
+        frame.limit(HEADER_SIZE + length);
+        frame.duplicate().position(HEADER_SIZE).put(src, offset, length);
+        return this;
+    }
+
+    // 以指定字节填充负载，用于生成测试数据；按8字节一次写入，大包时开销不致主导发送路径
+    public Packet fillPayload(byte value, int length) {
+        frame.limit(HEADER_SIZE + length);
+        long word = (value & 0xffL) * 0x0101010101010101L;
+        int i = HEADER_SIZE;
+        for (; i + 8 <= HEADER_SIZE + length; i += 8) {
+            frame.putLong(i, word);
+        }
+        for (; i < HEADER_SIZE + length; i++) {
+            frame.put(i, value);
+        }
+        return this;
+    }
+
+    // 从文件的position处读取length字节作为负载，直接读入报文的缓冲区
+    public Packet readPayload(FileChannel channel, long position, int length) throws IOException {
+        frame.limit(HEADER_SIZE + length).position(HEADER_SIZE);
+        try {
+            while (frame.hasRemaining()) {
+                if (channel.read(frame, position + frame.position() - HEADER_SIZE) < 0) {
+                    throw new EOFException("文件在传输过程中被截短");
+                }
+            }
+        } finally {
+            frame.position(0);
+        }
+        return this;
+    }
+
+    // 把负载写到文件的position处，不经过中间数组
+    public void writePayload(FileChannel channel, long position) throws IOException {
+        frame.position(HEADER_SIZE);
+        try {
+            while (frame.hasRemaining()) {
+                channel.write(frame, position + frame.position() - HEADER_SIZE);
+            }
+        } finally {
+            frame.position(0);
+        }
+    }
+
+    // 用负载更新校验和
+    public Packet updateChecksum(Checksum checksum) {
+        frame.position(HEADER_SIZE);
+        checksum.update(frame);
+        frame.position(0);
+        return this;
+    }
+
+    // 在确认报文末尾追加一个SACK块
+    public Packet addSack(int start, int end) {
+        return appendInt(start).appendInt(end);
+    }
+
+    // 在报文末尾追加4字节，例如FIN和FIN-ACK中携带的校验和
+    public Packet appendInt(int value) {
+        int offset = frame.limit();
+        frame.limit(offset + 4);
+        frame.putInt(offset, value);
+        return this;
+    }
+
+    // 把本对象指向buffer中[0, limit)的报文，不复制数据；返回null表示长度不足一个头部
+    public Packet view(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_SIZE) {
+            return null;
+        }
+        this.frame = buffer;
+        return this;
+    }
+
+    // 完整报文所在的缓冲区，内容位于[0, limit)
+    public ByteBuffer frame() {
+        return frame;
     }
 
     // 序列化
     public byte[] serialize() {
-        int payloadLength = (payload != null) ? payload.length : 0;
-        ByteBuffer buffer = ByteBuffer.allocate(17 + payloadLength);
-        buffer.put(type);
-        buffer.putInt(seqNumber);
-        buffer.putInt(ackNumber);
-        buffer.putLong(timestamp);
-        if (payload != null) {
-            buffer.put(payload);
-        }
-        return buffer.array();
+        byte[] data = new byte[frame.limit()];
+        frame.duplicate().position(0).get(data);
+        return data;
     }
 
-    // 反序列化
+    // 反序列化：报文直接包装data，不复制负载
     public static Packet deserialize(byte[] data) {
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        byte type = buffer.get();
-        int seq = buffer.getInt();
-        int ack = buffer.getInt();
-        long timestamp = buffer.getLong();
-
-        byte[] payload = null;
-        if (buffer.remaining() > 0) {
-            payload = new byte[buffer.remaining()];
-            buffer.get(payload);
-        }
+        return deserialize(data, 0, data.length);
+    }
 
-        return new Packet(type, seq, ack, payload);
+    public static Packet deserialize(byte[] data, int offset, int length) {
+        return new Packet(ByteBuffer.wrap(data, offset, length).slice());
     }
 
     // Getters
-    public byte getType() { return type; }
-    public int getSeqNumber() { return seqNumber; }
-    public int getAckNumber() { return ackNumber; }
-    public long getTimestamp() { return timestamp; }
-    public byte[] getPayload() { return payload; }
-    public int getLength() { return (payload != null) ? payload.length : 0; }
+    public byte getType() { return frame.get(0); }
+    // RFC 1982序列号算术：把32位的相对序列号还原为离reference最近的64位字节偏移。
+    // 只要两者相差不到2^31，序列号回绕后仍能正确还原，因此传输长度不受32位限制
+    public static long unwrap(int seq, long reference) {
+        return reference + (seq - (int) reference);
+    }
+
+    public int getSeqNumber() { return frame.getInt(SEQ_OFFSET); }
+    public int getAckNumber() { return frame.getInt(ACK_OFFSET); }
+    public long getTimestamp() { return frame.getLong(TIMESTAMP_OFFSET); }
+    public int getWindow() { return frame.getInt(WINDOW_OFFSET); }
+    public int getConnectionId() { return frame.getInt(CONNECTION_OFFSET); }
+    public int getLength() { return frame.limit() - HEADER_SIZE; }
+
+    public int getSackCount() { return getLength() / SACK_BLOCK_SIZE; }
+    public int getSackStart(int i) { return frame.getInt(HEADER_SIZE + i * SACK_BLOCK_SIZE); }
+    public int getSackEnd(int i) { return frame.getInt(HEADER_SIZE + i * SACK_BLOCK_SIZE + 4); }
+    public int getPayloadInt(int offset) { return frame.getInt(HEADER_SIZE + offset); }
+    public long getPayloadLong(int offset) { return frame.getLong(HEADER_SIZE + offset); }
+
+    // 复制出负载，没有负载时返回null
+    public byte[] getPayload() {
+        int length = getLength();
+        if (length == 0) {
+            return null;
+        }
+        byte[] payload = new byte[length];
+        frame.duplicate().position(HEADER_SIZE).get(payload);
+        return payload;
+    }
+
+    // 报文对象池：用完的报文归还后重复使用，池满时丢弃，池空时新建
+    public static class Pool {
+        private final Packet[] free;
+        private final int payloadCapacity;
+        private final boolean direct;
+        private int size;
+
+        public Pool(int capacity, int payloadCapacity, boolean direct) {
+            this.free = new Packet[capacity];
+            this.payloadCapacity = payloadCapacity;
+            this.direct = direct;
+        }
+
+        public synchronized Packet acquire() {
+            if (size > 0) {
+                Packet packet = free[--size];
+                free[size] = null;
+                return packet;
+            }
+            return allocate(payloadCapacity, direct);
+        }
+
+        public synchronized void release(Packet packet) {
+            if (size < free.length) {
+                free[size++] = packet;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -1,6 +1,22 @@
+import java.lang.invoke.VarHandle;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+// 流式统计：样本是非负的long值，不保存，内存固定。最初用于RTT（纳秒），也用于拥塞窗口（字节）等其他量。
+// 均值和方差用Welford算法O(1)更新，分位数来自对数分桶直方图（相对误差约3%），最小值和最大值精确记录。
+// 多个线程可以同时记录且不加锁：直方图和最值使用原子操作，Welford状态每个线程一份，读取时合并
 public class RTTStatistics {
+    private static final int SUB_BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+    private final List<Cell> cells = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Cell> localCell = ThreadLocal.withInitial(this::newCell);
+
     public static double calculateStdDev(List<Long> values) {
         if (values.size() < 2) return 0;
 
@@ -24,4 +40,141 @@ public class RTTStatistics {
         }
         return (double) sum / values.size();
     }
+
+    // 记录一个样本，单位由调用方决定（RTT为System.nanoTime的差值）；负值按0记录
+    public void record(long sample) {
+        long value = Math.max(0, sample);
+        counts.incrementAndGet(index(value));
+        min.accumulateAndGet(value, Math::min);
+        max.accumulateAndGet(value, Math::max);
+        localCell.get().add(value);
+    }
+
+    public long count() {
+        return (long) merged()[0];
+    }
+
+    public long min() {
+        long value = min.get();
+        return value == Long.MAX_VALUE ? 0 : value;
+    }
+
+    public long max() {
+        long value = max.get();
+        return value == Long.MIN_VALUE ? 0 : value;
+    }
+
+    public double mean() {
+        return merged()[1];
+    }
+
+    // 总体标准差，与calculateStdDev一致
+    public double stdDev() {
+        double[] state = merged();
+        return state[0] < 2 ? 0 : Math.sqrt(state[2] / state[0]);
+    }
+
+    // 返回第p百分位所在桶的上界，不超过记录到的最大值
+    public long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(p / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max());
+            }
+        }
+        return max();
+    }
+
+    public String toJson() {
+        double[] state = merged();
+        return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.1f, \"stddev\": %.1f, \"min\": %d, "
+                        + "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"p999\": %d, \"max\": %d}",
+                (long) state[0], state[1], state[0] < 2 ? 0 : Math.sqrt(state[2] / state[0]), min(),
+                percentile(50), percentile(90), percentile(99), percentile(99.9), max());
+    }
+
+    // 合并各线程的Welford状态：{样本数, 均值, 离差平方和}
+    private double[] merged() {
+        double n = 0;
+        double mean = 0;
+        double m2 = 0;
+        double[] cell = new double[3];
+        for (Cell c : cells) {
+            c.read(cell);
+            if (cell[0] == 0) {
+                continue;
+            }
+            double total = n + cell[0];
+            double delta = cell[1] - mean;
+            mean += delta * cell[0] / total;
+            m2 += cell[2] + delta * delta * n * cell[0] / total;
+            n = total;
+        }
+        return new double[]{n, mean, m2};
+    }
+
+    private Cell newCell() {
+        Cell cell = new Cell();
+        cells.add(cell);
+        return cell;
+    }
+
+    // 小于2*SUB_BUCKETS的值各占一个桶，更大的值按最高有效位所在区间和其后5位分桶
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - 5));
+        return 2 * SUB_BUCKETS + (exponent - 6) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 6;
+        long mantissa = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << (exponent - 5)) - 1;
+    }
+
+    // 单个线程的Welford状态，只由所属线程写入；版本号为奇数表示正在更新，读取方据此重试
+    private static class Cell {
+        private volatile long version;
+        private long count;
+        private double mean;
+        private double m2;
+
+        void add(long value) {
+            version++;
+            VarHandle.storeStoreFence();
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            version++;
+        }
+
+        void read(double[] out) {
+            while (true) {
+                long before = version;
+                if ((before & 1) == 0) {
+                    out[0] = count;
+                    out[1] = mean;
+                    out[2] = m2;
+                    VarHandle.acquireFence();
+                    if (version == before) {
+                        return;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+    }
 }
\ No newline at end of file
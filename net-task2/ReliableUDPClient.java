@@ -1,108 +1,280 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
 import java.util.Random; // 添加Random导入
 
+// 客户端在一个线程中运行事件循环：非阻塞的DatagramChannel注册到Selector，循环填充发送窗口，
+// 然后等待确认到达或最早的重传定时器到期，醒来后立即处理。所有状态只由这一个线程访问，不需要加锁
 public class ReliableUDPClient {
     // 配置参数
-    private static final int WINDOW_SIZE = 400;  // 窗口大小（字节）
+    private static final int WINDOW_SIZE = 65536; // 发送窗口上限（字节），实际窗口由拥塞控制和接收窗口决定
     private static final int MIN_PACKET_SIZE = 40; // 最小包大小
     private static final int MAX_PACKET_SIZE = 80; // 最大包大小
     private static final int TOTAL_DATA = 2400;   // 总数据量（30个包）
     private static final int INIT_TIMEOUT = 300;  // 初始超时时间(ms)
     private static final int MAX_RETRIES = 5;     // 最大重传次数
-
-    // 网络组件
-    private DatagramSocket socket;
-    private InetAddress serverAddr;
-    private int serverPort;
+    private static final int MIN_TIMEOUT = 50;    // 超时时间下限(ms)，避免RTT很小时频繁重传
+    private static final int MAX_TIMEOUT = 60000; // 退避后的超时时间上限(ms)
+    private static final int TIMER_TICK = 1;      // 时间轮每格时长(ms)
+    private static final int TIMER_WHEEL_SIZE = 512; // 时间轮格数
+    private static final int DUP_THRESH = 3;      // 快速重传阈值：其后被SACK确认的包数或重复确认数
+    private static final String CONGESTION_CONTROL = "reno"; // 拥塞控制算法
+    private static final int MAX_NAME_BYTES = 255; // SYN中携带的文件名最大字节数
+    private static final int MAX_POLL = 1000;     // 没有定时器时单次等待的上限(ms)
+    private static final int SOCKET_BUFFER = 4 << 20; // 套接字收发缓冲区（受系统上限约束），大包、大窗口时减少写满的次数
+    static final int MTU_PROBE = -1;              // TransferOptions.mtu取此值时探测路径MTU，负载测试同样使用
+    private static final int IPV4_OVERHEAD = 28;  // IPv4和UDP头部
+    private static final int IPV6_OVERHEAD = 48;  // IPv6和UDP头部
+    private static final double PACING_GAIN_SLOW_START = 2.0; // 慢启动时的节奏增益，使窗口仍能每个RTT翻倍
+    private static final double PACING_GAIN = 1.2; // 拥塞避免时的节奏增益，吸收RTT抖动
+    private static final long PACING_QUANTUM = 1_000_000; // 节奏发送允许积累的突发(ns)：选择器以毫秒计时，更短的间隔无法单独等待
+
+    // 网络组件：通道连接到服务器，只接收服务器的报文
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private boolean writeBlocked;   // 发送缓冲区已满，等待通道可写
     private Random random = new Random(); // 添加Random成员变量
+    private final TransferOptions options;
+    // 连接ID，服务器据此区分同一地址和端口上的不同连接
+    private final int connectionId;
+    // 初始序列号：报文中的序列号为isn加字节偏移，按32位回绕；内部一律使用64位字节偏移
+    private final int isn;
+    private final long totalData;
+    // 包大小范围，指定MTU时两者都取该MTU能容纳的最大负载
+    private final int minPacketSize;
+    private final int maxPacketSize;
+
+    // 文件传输：数据从文件直接读入报文缓冲区，首次发送时按顺序计算CRC32C，与服务器在FIN-ACK中带回的比较
+    private final FileChannel source;
+    private final CRC32C checksum = new CRC32C();
+    private int serverFileStatus = -1;  // FIN-ACK带回的文件状态，-1表示服务器没有返回
+    private long serverChecksum = -1;
 
     // 传输状态
-    private int base = 0;          // 窗口起始
-    private int nextSeq = 0;        // 下一个发送位置
+    private long base = 0;          // 窗口起始
+    private long nextSeq = 0;       // 下一个发送位置
     private int packetCounter = 1;  // 包计数器
-
-    // 包管理
-    private final Map<Integer, Packet> sentPackets = new ConcurrentHashMap<>();
-    private final Map<Integer, Long> sendTimes = new ConcurrentHashMap<>();
-    private final Map<Integer, Integer> retryCounts = new ConcurrentHashMap<>();
-    private final Map<Integer, int[]> packetRanges = new ConcurrentHashMap<>();
+    private int dupAcks = 0;        // 连续重复确认数
+    private long lossBoundary = 0;  // 丢包边界：其下未被SACK确认的包都已判定丢失，只向上移动
+    private int sackedAboveBoundary = 0; // 丢包边界及以上已被SACK确认的包数
+    private int sackedBytes = 0;    // 窗口内已被SACK确认的字节数，不计入在途数据
+    private int rwnd;               // 服务器最近通告的接收窗口
+    private long lastAckTime;       // 最近一次收到有效确认的时间(ns)
+    private long recoveryPoint = 0; // 上次降窗时的nextSeq，此前发出的包再丢失不重复降窗
+    private long nextSendTime;      // 节奏发送：下一个新包最早的发送时间(ns)
+    private IOException failure;    // 传输失败的原因，由事件循环抛出
+    private boolean connected;      // 已收到SYN-ACK
+    private boolean finAcked;       // 已收到FIN-ACK
+
+    // 拥塞控制
+    private final CongestionControl cc;
+
+    // 包管理：窗口内最多容纳windowSize / minPacketSize + 1个未确认包
+    private final SendWindow window;
+    // 每个未确认包一个重传定时器，编号为其在发送窗口中的槽位
+    private final TimerWheel timers;
+    private final IntConsumer onTimeout = this::retransmit;
+
+    // 数据包在确认后归还对象池；收发缓冲区复用，避免每个报文分配内存。
+    // 通道直接读写这些缓冲区，使用直接内存可以省去JDK在堆缓冲区和内核之间的一次复制
+    private final Packet.Pool packetPool;
+    private final Packet control = Packet.allocate(8 + MAX_NAME_BYTES, true);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1024);
+    private final Packet received = Packet.allocate(0, false);
 
     // 统计
-    private final List<Long> rttList = new ArrayList<>();
+    private final RTTStatistics rttStats = new RTTStatistics();
+    // 重传超时估计，SRTT/RTTVAR按RFC 6298更新
+    private final RtoEstimator rto = new RtoEstimator(INIT_TIMEOUT, MIN_TIMEOUT, MAX_TIMEOUT, TIMER_TICK);
     private int totalSent = 0;
     private int totalResent = 0;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private int fastResent = 0;
+    private int lossEvents = 0;
+    private int timeoutEvents = 0;
+    private int minRwnd = Integer.MAX_VALUE;
+    // 拥塞窗口的变化：每次确认或降窗后记录一次当前值（字节）
+    private final RTTStatistics cwndStats = new RTTStatistics();
+    private long setupNanos;
 
     public ReliableUDPClient(String host, int port) throws Exception {
-        this.serverAddr = InetAddress.getByName(host);
-        this.serverPort = port;
-        this.socket = new DatagramSocket();
-        this.socket.setSoTimeout(INIT_TIMEOUT);
+        this(host, port, new TransferOptions());
+    }
+
+    public ReliableUDPClient(String host, int port, TransferOptions options) throws Exception {
+        if (options.file != null) {
+            this.source = FileChannel.open(options.file, StandardOpenOption.READ);
+            this.totalData = source.size();
+        } else {
+            this.source = null;
+            this.totalData = options.totalData;
+        }
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+        this.channel.connect(new InetSocketAddress(host, port));
+        this.channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
         this.random = new Random(); // 初始化Random
+        this.options = options;
+        this.connectionId = random.nextInt(Integer.MAX_VALUE - 1) + 1;
+        this.isn = random.nextInt();
+
+        if (options.mtu != 0) {
+            int mtu = options.mtu == MTU_PROBE ? probeMtu() : options.mtu;
+            InetAddress remote = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            int overhead = remote instanceof Inet6Address ? IPV6_OVERHEAD : IPV4_OVERHEAD;
+            this.maxPacketSize = Math.min(mtu - overhead - Packet.HEADER_SIZE, Packet.MAX_PAYLOAD);
+            this.minPacketSize = maxPacketSize;
+        } else {
+            this.minPacketSize = options.minPacketSize;
+            this.maxPacketSize = options.maxPacketSize;
+        }
+        if (minPacketSize < 1 || minPacketSize > maxPacketSize || maxPacketSize > Packet.MAX_PAYLOAD) {
+            throw new IllegalArgumentException("包大小无效: " + minPacketSize + "~" + maxPacketSize
+                    + "，应在 1~" + Packet.MAX_PAYLOAD + " 之间");
+        }
+        this.cc = CongestionControl.create(options.congestionControl, maxPacketSize, options.windowSize);
+
+        int maxInFlight = options.windowSize / minPacketSize + 1;
+        this.window = new SendWindow(maxInFlight);
+        this.timers = new TimerWheel(window.capacity(), TIMER_WHEEL_SIZE, TIMER_TICK, millis(System.nanoTime()));
+        this.packetPool = new Packet.Pool(maxInFlight, maxPacketSize, true);
+    }
+
+    // 探测路径MTU：取发出报文的本地网络接口的MTU。环回和同一局域网内没有更窄的链路，接口MTU即路径MTU；
+    // 经过路由器的路径可能更窄，应该用--mtu直接指定
+    private int probeMtu() throws IOException {
+        InetAddress local = ((InetSocketAddress) channel.getLocalAddress()).getAddress();
+        NetworkInterface nic = NetworkInterface.getByInetAddress(local);
+        if (nic == null || nic.getMTU() <= 0) {
+            throw new IOException("无法探测路径MTU（本地地址 " + local + "），请用--mtu指定");
+        }
+        return nic.getMTU();
     }
 
     public void start() throws Exception {
-        // 建立连接
-        establishConnection();
-
-        // 启动ACK接收线程
-        Thread receiver = new Thread(this::receiveAcks);
-        receiver.setDaemon(true);
-        receiver.start();
-
-        // 启动超时检测
-        scheduler.scheduleAtFixedRate(this::checkTimeouts, 50, 50, TimeUnit.MILLISECONDS);
-
-        // 发送数据
-        while (base < TOTAL_DATA) {
-            // 填充发送窗口
-            while (nextSeq < base + WINDOW_SIZE && nextSeq < TOTAL_DATA) {
-                sendNextPacket();
+        try {
+            // 建立连接
+            long setupStart = System.nanoTime();
+            establishConnection();
+            setupNanos = System.nanoTime() - setupStart;
+
+            // 事件循环：填充发送窗口，等到确认到达或最早的定时器到期，再处理到期的定时器
+            while (base < totalData) {
+                if (failure != null) {
+                    throw failure;
+                }
+
+                // 填充发送窗口；节奏发送时新包按拥塞状态允许的速率均匀发出，而不是一次发满整个窗口
+                boolean paced = false;
+                while (!writeBlocked && nextSeq < totalData && canSend()) {
+                    if (options.pacing && System.nanoTime() < nextSendTime) {
+                        paced = true;
+                        break;
+                    }
+                    sendNextPacket();
+                }
+
+                poll(paced ? Math.min(timerDelay(), pacingDelay()) : timerDelay());
+                timers.advance(millis(System.nanoTime()), onTimeout);
             }
 
-            // 避免CPU忙等待
-            Thread.sleep(10);
+            // 关闭连接
+            closeConnection();
+            if (source != null) {
+                verifyChecksum();
+            }
+        } finally {
+            // 清理资源
+            selector.close();
+            channel.close();
+            if (source != null) {
+                source.close();
+            }
         }
 
-        // 关闭连接
-        closeConnection();
+        // 打印统计
+        if (options.verbose) {
+            printStatistics();
+        }
+    }
 
-        // 清理资源
-        scheduler.shutdown();
-        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+    // 在途数据小于拥塞窗口、接收窗口和窗口上限中的最小值时才能继续发送；
+    // 没有在途数据时总是允许发送一个包，接收窗口为0时它充当窗口探测，服务器的确认会带回新的窗口
+    private boolean canSend() {
+        if (window.isEmpty()) {
+            return true;
+        }
+        int limit = Math.min(Math.min(cc.window(), rwnd), options.windowSize);
+        return !window.isFull() && inFlight() < limit;
+    }
 
-        // 打印统计
-        printStatistics();
+    // 已发出、尚未被累积确认或SACK确认的字节数
+    private int inFlight() {
+        return (int) (nextSeq - base - sackedBytes);
+    }
+
+    // 节奏发送的速率(字节/秒)：可用窗口除以平滑RTT再乘以增益（取Linux的默认值）；还没有RTT样本时不限速
+    private double pacingRate() {
+        double srtt = rto.srtt();
+        if (srtt <= 0) {
+            return 0;
+        }
+        int limit = Math.min(Math.min(cc.window(), rwnd), options.windowSize);
+        double gain = cc.window() < cc.ssthresh() ? PACING_GAIN_SLOW_START : PACING_GAIN;
+        return gain * limit / (srtt / 1e3);
+    }
+
+    // 距下一个新包可以发送还有多久(ms)，向上取整
+    private long pacingDelay() {
+        return Math.max(1, (nextSendTime - System.nanoTime() + 999_999) / 1_000_000);
     }
 
     private void sendNextPacket() throws IOException {
         // 确定包大小
-        int packetSize = Math.min(
-                MIN_PACKET_SIZE + random.nextInt(MAX_PACKET_SIZE - MIN_PACKET_SIZE + 1),
-                TOTAL_DATA - nextSeq
+        int packetSize = (int) Math.min(
+                minPacketSize + random.nextInt(maxPacketSize - minPacketSize + 1),
+                totalData - nextSeq
         );
 
-        // 创建数据包
-        byte[] payload = new byte[packetSize];
-        Arrays.fill(payload, (byte) 1); // 填充测试数据
-
-        Packet packet = new Packet(Packet.DATA, nextSeq, 0, payload);
+        // 创建数据包，负载为文件内容或测试数据；时间戳为发送时的System.nanoTime()，由服务器原样回显
+        long now = System.nanoTime();
+        Packet packet = packetPool.acquire()
+                .set(Packet.DATA, isn + (int) nextSeq, 0, now)
+                .setConnectionId(connectionId);
+        if (source != null) {
+            packet.readPayload(source, nextSeq, packetSize).updateChecksum(checksum);
+        } else {
+            packet.fillPayload((byte) 1, packetSize);
+        }
         sendPacket(packet);
 
         // 记录包信息
-        int start = nextSeq;
-        int end = nextSeq + packetSize - 1;
-        packetRanges.put(start, new int[]{start, end});
-        sendTimes.put(start, System.currentTimeMillis());
-        sentPackets.put(start, packet);
-        retryCounts.put(start, 0);
+        int slot = window.add(nextSeq, packetSize, packetCounter, now, packet);
+        timers.schedule(slot, millis(now) + rto.rto());
+
+        // 按当前速率推迟下一个包；空闲期间最多积累PACING_QUANTUM的发送额度
+        double rate = pacingRate();
+        if (rate > 0) {
+            nextSendTime = Math.max(nextSendTime, now - PACING_QUANTUM) + (long) (packetSize * 1e9 / rate);
+        }
 
         // 输出发送信息
-        System.out.printf("第 %d 个（第 %d~%d 字节）client 端已经发送%n",
-                packetCounter, start, end);
+        if (options.verbose) {
+            System.out.printf("第 %d 个（第 %d~%d 字节）client 端已经发送%n",
+                    packetCounter, nextSeq, nextSeq + packetSize - 1);
+        }
 
         // 更新状态
         nextSeq += packetSize;
@@ -111,163 +283,403 @@ public class ReliableUDPClient {
     }
 
     private void establishConnection() throws IOException {
-        // 发送SYN
-        Packet syn = new Packet(Packet.SYN, 0, 0, null);
-        sendPacket(syn);
+        // 发送SYN，文件传输时携带文件长度和文件名，服务器据此预先分配文件
+        control.set(Packet.SYN, isn, 0, System.nanoTime()).setConnectionId(connectionId);
+        if (source != null) {
+            byte[] name = options.file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME_BYTES) {
+                throw new IOException("文件名过长: " + options.file.getFileName());
+            }
+            byte[] payload = ByteBuffer.allocate(8 + name.length).putLong(totalData).put(name).array();
+            control.setPayload(payload, 0, payload.length);
+        }
+        sendPacket(control);
 
         // 等待SYN-ACK
-        byte[] buffer = new byte[1024];
-        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-        socket.receive(response);
+        long deadline = millis(System.nanoTime()) + INIT_TIMEOUT;
+        while (!connected) {
+            long remaining = deadline - millis(System.nanoTime());
+            if (remaining <= 0) {
+                throw new IOException("连接失败");
+            }
+            poll(remaining);
+        }
 
-        Packet synAck = Packet.deserialize(Arrays.copyOf(response.getData(), response.getLength()));
-        if ((synAck.getType() & Packet.SYN_ACK) == 0) {
-            throw new IOException("连接失败");
+        if (options.verbose) {
+            System.out.println("连接已建立");
         }
+    }
 
-        System.out.println("连接已建立");
+    private void handleSynAck(Packet synAck) {
+        if (connected) {
+            return;
+        }
+        connected = true;
+        // 服务器回显SYN的时间戳，握手即可得到第一个RTT样本
+        if (synAck.getTimestamp() != 0) {
+            rto.sample((System.nanoTime() - synAck.getTimestamp()) / 1e6);
+        }
+        rwnd = synAck.getWindow();
+        minRwnd = rwnd;
+        lastAckTime = System.nanoTime();
+        cwndStats.record(cc.window());
     }
 
     private void closeConnection() throws IOException {
-        // 发送FIN
-        Packet fin = new Packet(Packet.FIN, 0, 0, null);
-        sendPacket(fin);
-
-        // 等待FIN-ACK
-        byte[] buffer = new byte[1024];
-        DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-        socket.setSoTimeout(2000);
-        try {
-            socket.receive(response);
-            Packet finAck = Packet.deserialize(Arrays.copyOf(response.getData(), response.getLength()));
-            if ((finAck.getType() & Packet.ACK) == 0) {
-                throw new IOException("关闭失败");
+        // 发送FIN，文件传输时携带整个文件的CRC32C
+        control.set(Packet.FIN, 0, 0, System.nanoTime()).setConnectionId(connectionId);
+        if (source != null) {
+            control.appendInt((int) checksum.getValue());
+        }
+
+        // 等待FIN-ACK，超时按RTO退避重发FIN，最多重发MAX_RETRIES次；期间到达的迟到确认照常处理
+        long timeout = rto.rto();
+        long deadline = 0;
+        int attempts = 0;
+        while (!finAcked) {
+            long now = millis(System.nanoTime());
+            if (now >= deadline) {
+                if (attempts > MAX_RETRIES) {
+                    System.err.println("关闭超时，强制关闭");
+                    return;
+                }
+                sendPacket(control);
+                deadline = now + timeout;
+                timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+                attempts++;
+                continue;
             }
+            poll(deadline - now);
+        }
+        if (options.verbose) {
             System.out.println("连接已关闭");
-        } catch (SocketTimeoutException e) {
-            System.err.println("关闭超时，强制关闭");
         }
     }
 
+    // 文件传输只有在服务器确认完整保存、且校验和与本地一致时才算成功；拿不到服务器的文件状态同样视为失败
+    private void verifyChecksum() throws IOException {
+        long local = checksum.getValue();
+        if (serverFileStatus < 0) {
+            throw new IOException("服务器没有返回文件状态（未收到FIN-ACK、服务器未指定--out-dir或会话已失效），无法做端到端校验");
+        }
+        if (serverFileStatus == ReliableUDPServer.FILE_FAILED) {
+            throw new IOException("服务器保存文件失败");
+        }
+        if (serverFileStatus != ReliableUDPServer.FILE_STORED) {
+            throw new IOException(String.format("服务器收到的文件不完整或校验和不一致: 本地 CRC32C %08x，服务器 %08x",
+                    local, serverChecksum));
+        }
+        if (serverChecksum != local) {
+            throw new IOException(String.format("端到端校验失败: 本地 CRC32C %08x，服务器 %08x", local, serverChecksum));
+        }
+        if (options.verbose) {
+            System.out.printf("端到端校验通过: %d 字节，CRC32C %08x%n", totalData, local);
+        }
+    }
+
+    // 非阻塞发送；发送缓冲区已满时报文没有发出，当作丢失交给重传定时器，并在通道可写之前暂停发送新包
     private void sendPacket(Packet packet) throws IOException {
-        byte[] data = packet.serialize();
-        DatagramPacket datagram = new DatagramPacket(data, data.length, serverAddr, serverPort);
-        socket.send(datagram);
+        ByteBuffer frame = packet.frame();
+        int written = channel.write(frame);
+        frame.position(0);
+        if (written == 0) {
+            writeBlocked = true;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     }
 
-    private void receiveAcks() {
-        try {
-            byte[] buffer = new byte[1024];
-            while (!Thread.currentThread().isInterrupted()) {
-                DatagramPacket response = new DatagramPacket(buffer, buffer.length);
-                socket.receive(response);
-
-                Packet packet = Packet.deserialize(Arrays.copyOf(response.getData(), response.getLength()));
-                if ((packet.getType() & Packet.ACK) != 0) {
-                    handleAck(packet.getAckNumber());
+    // 最早的定时器到期前还可以等待多久(ms)；没有定时器时等待MAX_POLL
+    private long timerDelay() {
+        long next = timers.nextExpiry();
+        if (next < 0) {
+            return MAX_POLL;
+        }
+        return Math.min(MAX_POLL, next - millis(System.nanoTime()));
+    }
+
+    // 等待报文到达或通道可写，最多timeout毫秒，不大于0时不等待；然后处理所有已到达的报文
+    private void poll(long timeout) throws IOException {
+        int ready = timeout > 0 ? selector.select(timeout) : selector.selectNow();
+        if (ready == 0) {
+            return;
+        }
+        selector.selectedKeys().clear();
+        if (key.isWritable()) {
+            writeBlocked = false;
+            key.interestOps(SelectionKey.OP_READ);
+        }
+        if (key.isReadable()) {
+            receiveAll();
+        }
+    }
+
+    // 读出所有已到达的报文，直接在接收缓冲区上解析
+    private void receiveAll() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (channel.read(receiveBuffer) <= 0) {
+                return;
+            }
+            receiveBuffer.flip();
+            Packet packet = received.view(receiveBuffer);
+            if (packet == null || packet.getConnectionId() != connectionId) {
+                continue;
+            }
+            if ((packet.getType() & Packet.SYN_ACK) != 0) {
+                handleSynAck(packet);
+            } else if ((packet.getType() & Packet.FIN) != 0) {
+                if (packet.getLength() >= 8) {
+                    serverFileStatus = packet.getPayloadInt(0);
+                    serverChecksum = packet.getPayloadInt(4) & 0xffffffffL;
                 }
+                finAcked = true;
+            } else if ((packet.getType() & Packet.ACK) != 0) {
+                handleAck(packet);
             }
-        } catch (SocketException e) {
-            // 正常退出
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
-    private void handleAck(int ackNum) {
+    private void handleAck(Packet ack) {
+        long ackNum = Packet.unwrap(ack.getAckNumber() - isn, base);
+        // 服务器回显的数据包发送时间戳，0表示服务器没有回显
+        long echo = ack.getTimestamp();
+        long now = System.nanoTime();
+
+        // 重复确认按RFC 5681只计通告窗口没有收缩、且窗口容得下全部在途数据的：否则服务器是因缓冲区满
+        // 丢弃了超出窗口的数据，确认只是告知最新的窗口，并不说明链路丢包
+        int previousRwnd = rwnd;
+        if (ackNum >= base) {
+            updateRwnd(ack.getWindow());
+            lastAckTime = now;
+        }
+
         if (ackNum > base) {
-            // 处理所有被确认的包
-            Iterator<Integer> it = new ArrayList<>(sendTimes.keySet()).iterator();
-            while (it.hasNext()) {
-                int seq = it.next();
-                if (seq < ackNum) {
-                    // 计算RTT
-                    long rtt = System.currentTimeMillis() - sendTimes.get(seq);
-                    rttList.add(rtt);
-
-                    // 输出确认信息
-                    int[] range = packetRanges.get(seq);
-                    System.out.printf("第 %d 个（第 %d~%d 字节）server 端已经收到，RTT 是 %d ms%n",
-                            getPacketNumber(seq), range[0], range[1], rtt);
-
-                    // 移除已确认包
-                    sendTimes.remove(seq);
-                    sentPackets.remove(seq);
-                    packetRanges.remove(seq);
-                    retryCounts.remove(seq);
+            // RTT样本(ns)：回显的时间戳对应触发确认的那一次发送，即使是重传也没有歧义；
+            // 没有回显时按Karn算法，只采用未重传过的包
+            long sample = -1;
+            if (echo != 0) {
+                sample = now - echo;
+            } else if (window.oldest() >= 0 && window.retries(window.oldest()) == 0) {
+                sample = now - window.sendTime(window.oldest());
+            }
+            if (sample >= 0) {
+                rttStats.record(sample);
+                rto.sample(sample / 1e6);
+            }
+
+            // 累积确认：从最早的包开始依次出队，直到遇到未被完整确认的包
+            for (int slot = window.oldest(); slot >= 0 && window.end(slot) <= ackNum; slot = window.oldest()) {
+                long rtt = now - window.sendTime(slot);
+                if (options.deliveries != null) {
+                    options.deliveries.record(now - window.firstSendTime(slot));
+                }
+
+                // 输出确认信息
+                if (options.verbose) {
+                    System.out.printf("第 %d 个（第 %d~%d 字节）server 端已经收到，RTT 是 %.3f ms%n",
+                            window.number(slot), window.seq(slot), window.end(slot) - 1, rtt / 1e6);
                 }
+
+                // 移除已确认包
+                if (window.isSacked(slot)) {
+                    sackedBytes -= window.length(slot);
+                    if (window.seq(slot) >= lossBoundary) {
+                        sackedAboveBoundary--;
+                    }
+                }
+                timers.cancel(slot);
+                packetPool.release(window.removeOldest());
             }
+            lossBoundary = Math.max(lossBoundary, window.isEmpty() ? ackNum : window.seq(window.oldest()));
 
-            // 推进窗口
+            // 推进窗口，拥塞窗口随确认的字节数增长
+            cc.onAck((int) (ackNum - base), rto.srtt(), now);
+            recordCwnd();
             base = ackNum;
+            dupAcks = 0;
+        } else if (ackNum == base && !window.isEmpty() && rwnd >= previousRwnd && nextSeq - base <= rwnd) {
+            dupAcks++;
+        }
+
+        if (options.sack && !window.isEmpty()) {
+            markSacked(ack);
+            detectLosses(ack.getSackCount() > 0);
         }
     }
 
-    private int getPacketNumber(int seq) {
-        // 简化实现：返回包在发送顺序中的编号
-        for (Map.Entry<Integer, int[]> entry : packetRanges.entrySet()) {
-            if (entry.getKey() == seq) {
-                // 在实际应用中应维护映射关系，这里简化处理
-                return packetRanges.keySet().stream()
-                        .filter(k -> k <= seq)
-                        .mapToInt(k -> 1)
-                        .sum();
+    // 标记被SACK块完整覆盖的包，取消它们的重传定时器
+    private void markSacked(Packet ack) {
+        for (int b = 0; b < ack.getSackCount(); b++) {
+            long start = Math.max(Packet.unwrap(ack.getSackStart(b) - isn, base), base);
+            long end = Packet.unwrap(ack.getSackEnd(b) - isn, base);
+            int i = window.find(start);
+            if (i < 0) {
+                continue;
+            }
+            for (; i < window.size(); i++) {
+                int slot = window.slot(i);
+                if (window.end(slot) > end) {
+                    break;
+                }
+                if (window.seq(slot) >= start && !window.isSacked(slot)) {
+                    window.sack(slot);
+                    sackedBytes += window.length(slot);
+                    if (window.seq(slot) >= lossBoundary) {
+                        sackedAboveBoundary++;
+                    }
+                    timers.cancel(slot);
+                }
             }
         }
-        return -1;
     }
 
-    private void checkTimeouts() {
-        long now = System.currentTimeMillis();
-        int timeout = calculateTimeout();
-
-        // 检查所有未确认包
-        for (Map.Entry<Integer, Long> entry : new HashMap<>(sendTimes).entrySet()) {
-            int seq = entry.getKey();
-            long sendTime = entry.getValue();
-
-            if (now - sendTime > timeout) {
-                int retries = retryCounts.getOrDefault(seq, 0);
-
-                if (retries >= MAX_RETRIES) {
-                    System.err.printf("达到最大重传次数，放弃包: %d (字节 %d-%d)%n",
-                            getPacketNumber(seq),
-                            packetRanges.get(seq)[0],
-                            packetRanges.get(seq)[1]);
-                    sendTimes.remove(seq);
-                    continue;
+    // 快速重传：某个包之后已有DUP_THRESH个包被SACK确认时，认为它已丢失，立即重传，不等待超时；
+    // 服务器没有发送SACK块时退回到DUP_THRESH个重复确认后重传最早的包。
+    // SACK确认只增不减，丢包边界因此只向上移动：越过一个已SACK的包后上方仍有DUP_THRESH个时才越过它，
+    // 途经的未确认包即判定丢失。每个包只被检查一次，不必每个确认都重新扫描整个窗口
+    private void detectLosses(boolean hasSack) {
+        if (!hasSack) {
+            int oldest = window.oldest();
+            if (dupAcks >= DUP_THRESH && !window.isFastResent(oldest)) {
+                fastRetransmit(oldest);
+            }
+            return;
+        }
+
+        if (sackedAboveBoundary < DUP_THRESH) {
+            return;
+        }
+        for (int i = window.find(lossBoundary); ; i++) {
+            int slot = window.slot(i);
+            if (window.isSacked(slot)) {
+                if (sackedAboveBoundary == DUP_THRESH) {
+                    break;
                 }
+                sackedAboveBoundary--;
+            } else if (!window.isFastResent(slot)) {
+                fastRetransmit(slot);
+            }
+            lossBoundary = window.end(slot);
+        }
+    }
 
-                try {
-                    // 重发包
-                    Packet packet = sentPackets.get(seq);
-                    sendPacket(packet);
-
-                    // 更新状态
-                    sendTimes.put(seq, now);
-                    retryCounts.put(seq, retries + 1);
-                    totalResent++;
-
-                    // 输出重传信息
-                    int[] range = packetRanges.get(seq);
-                    System.out.printf("重传第 %d 个（第 %d~%d 字节）数据包%n",
-                            getPacketNumber(seq), range[0], range[1]);
-                } catch (IOException e) {
-                    e.printStackTrace();
+    private void fastRetransmit(int slot) {
+        try {
+            long now = System.nanoTime();
+            sendPacket(window.packet(slot).setTimestamp(now));
+
+            // 只重传这一次，之后再丢失仍由定时器处理；快速重传说明链路仍在工作，RTO不退避
+            window.fastResent(slot, now);
+            timers.schedule(slot, millis(now) + rto.rto());
+            totalResent++;
+            fastResent++;
+
+            if (options.verbose) {
+                System.out.printf("快速重传第 %d 个（第 %d~%d 字节）数据包%n",
+                        window.number(slot), window.seq(slot), window.end(slot) - 1);
+            }
+
+            // 同一窗口内的多个丢包只算一次拥塞
+            if (window.seq(slot) >= recoveryPoint) {
+                cc.onLoss(inFlight(), now);
+                recoveryPoint = nextSeq;
+                lossEvents++;
+                recordCwnd();
+                if (options.verbose) {
+                    System.out.printf("拥塞窗口降为 %d 字节（快速重传）%n", cc.window());
                 }
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void retransmit(int slot) {
+        // 包超出服务器最近通告的窗口、且发出后仍收到过确认时，它是被接收缓冲区满丢弃的，重发相当于TCP的
+        // 窗口探测：服务器仍在响应，不计入重传次数上限，也不退避RTO、不降窗，读得慢的服务器不会导致传输失败
+        long now = System.nanoTime();
+        if (window.end(slot) > base + rwnd && lastAckTime - window.sendTime(slot) > 0) {
+            probe(slot, now);
+            return;
+        }
+        if (window.retries(slot) >= MAX_RETRIES) {
+            System.err.printf("达到最大重传次数，放弃包: %d (字节 %d-%d)%n",
+                    window.number(slot), window.seq(slot), window.end(slot) - 1);
+            window.abandon(slot);
+            // 累积确认无法再越过这个包，终止传输
+            failure = new IOException("达到最大重传次数: 字节 " + window.seq(slot));
+            return;
+        }
+
+        // 最早的未确认包超时相当于TCP的重传定时器超时，RTO加倍；其余包沿用当前RTO，避免一次丢失多包时重复退避
+        // 拥塞窗口同理只在最早的包超时时降为一个包，重新慢启动
+        if (slot == window.oldest()) {
+            rto.backoff();
+            cc.onTimeout(inFlight(), now);
+            recoveryPoint = nextSeq;
+            timeoutEvents++;
+            recordCwnd();
+        }
+
+        try {
+            // 重发包，时间戳更新为本次发送时间
+            sendPacket(window.packet(slot).setTimestamp(now));
+
+            // 更新状态
+            window.resent(slot, now);
+            timers.schedule(slot, millis(now) + rto.rto());
+            totalResent++;
+
+            // 输出重传信息
+            if (options.verbose) {
+                System.out.printf("重传第 %d 个（第 %d~%d 字节）数据包%n",
+                        window.number(slot), window.seq(slot), window.end(slot) - 1);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void probe(int slot, long now) {
+        try {
+            sendPacket(window.packet(slot).setTimestamp(now));
+            window.probed(slot, now);
+            timers.schedule(slot, millis(now) + rto.rto());
+            totalResent++;
+            if (options.verbose) {
+                System.out.printf("窗口探测：重发第 %d 个（第 %d~%d 字节）数据包，接收窗口 %d 字节%n",
+                        window.number(slot), window.seq(slot), window.end(slot) - 1, rwnd);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    private int calculateTimeout() {
-        if (rttList.isEmpty()) return INIT_TIMEOUT;
+    // 只采用不早于当前窗口的确认中的通告
+    private void updateRwnd(int advertised) {
+        rwnd = advertised;
+        minRwnd = Math.min(minRwnd, advertised);
+    }
+
+    private void recordCwnd() {
+        cwndStats.record(cc.window());
+        if (options.windows != null) {
+            options.windows.record(cc.window());
+        }
+    }
 
-        // 使用平均RTT的5倍
-        long sum = 0;
-        for (long rtt : rttList) sum += rtt;
-        return (int) (sum / rttList.size() * 5);
+    // 时间轮以毫秒为单位
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
     }
 
+    int getTotalSent() { return totalSent; }
+    int getTotalResent() { return totalResent; }
+    int getFastResent() { return fastResent; }
+    int getLossEvents() { return lossEvents; }
+    int getTimeoutEvents() { return timeoutEvents; }
+    long getSetupNanos() { return setupNanos; }
+
     private void printStatistics() {
         int totalPackets = totalSent + totalResent;
         double lossRate = (double) totalResent / totalPackets * 100;
@@ -275,33 +687,83 @@ public class ReliableUDPClient {
         System.out.println("\n===== 传输统计 =====");
         System.out.printf("总发送包数: %d%n", totalPackets);
         System.out.printf("原始发送包数: %d%n", totalSent);
-        System.out.printf("重传包数: %d%n", totalResent);
+        System.out.printf("重传包数: %d（其中快速重传 %d）%n", totalResent, fastResent);
         System.out.printf("丢包率: %.2f%%%n", lossRate);
+        System.out.printf("包大小: %d~%d 字节, 节奏发送: %s%n", minPacketSize, maxPacketSize, options.pacing ? "开启" : "关闭");
+
+        if (rttStats.count() > 0) {
+            System.out.printf("RTT统计（%d 个样本）:%n", rttStats.count());
+            System.out.printf("  最小值: %.3f ms%n", rttStats.min() / 1e6);
+            System.out.printf("  最大值: %.3f ms%n", rttStats.max() / 1e6);
+            System.out.printf("  平均值: %.3f ms%n", rttStats.mean() / 1e6);
+            System.out.printf("  标准差: %.3f ms%n", rttStats.stdDev() / 1e6);
+            System.out.printf("  p50/p90/p99/p99.9: %.3f / %.3f / %.3f / %.3f ms%n",
+                    rttStats.percentile(50) / 1e6, rttStats.percentile(90) / 1e6,
+                    rttStats.percentile(99) / 1e6, rttStats.percentile(99.9) / 1e6);
+            System.out.printf("  平滑RTT: %.2f ms, RTT偏差: %.2f ms, 当前超时: %d ms%n",
+                    rto.srtt(), rto.rttvar(), rto.rto());
+        }
 
-        if (!rttList.isEmpty()) {
-            long minRtt = Collections.min(rttList);
-            long maxRtt = Collections.max(rttList);
-            double avgRtt = RTTStatistics.calculateMean(rttList);
-            double stdDev = RTTStatistics.calculateStdDev(rttList);
+        System.out.printf("拥塞控制: %s, 丢包降窗 %d 次, 超时降窗 %d 次%n", cc.name(), lossEvents, timeoutEvents);
+        System.out.printf("  拥塞窗口: 最小 %d / 平均 %.0f / p50 %d / 最大 %d 字节, 结束时 %d 字节%n",
+                cwndStats.min(), cwndStats.mean(), cwndStats.percentile(50), cwndStats.max(), cc.window());
+        System.out.printf("  慢启动阈值: %s, 最小接收窗口: %d 字节%n",
+                cc.ssthresh() == Integer.MAX_VALUE ? "未设置" : cc.ssthresh() + " 字节", minRwnd);
+    }
 
-            System.out.println("RTT统计:");
-            System.out.printf("  最小值: %d ms%n", minRtt);
-            System.out.printf("  最大值: %d ms%n", maxRtt);
-            System.out.printf("  平均值: %.2f ms%n", avgRtt);
-            System.out.printf("  标准差: %.2f ms%n", stdDev);
-        }
+    // 传输参数，默认值即上面的常量；负载测试据此创建多个不打印日志的客户端
+    static class TransferOptions {
+        long totalData = TOTAL_DATA;
+        // 发送窗口上限，同时决定发送窗口的槽位数
+        int windowSize = WINDOW_SIZE;
+        int minPacketSize = MIN_PACKET_SIZE;
+        int maxPacketSize = MAX_PACKET_SIZE;
+        // 非0时忽略上面的包大小，每个包都取该MTU能容纳的最大负载；MTU_PROBE表示探测本地接口的MTU
+        int mtu;
+        // 按拥塞窗口和RTT决定的速率均匀发送新包
+        boolean pacing = true;
+        // 处理SACK块并快速重传；关闭时只靠超时重传
+        boolean sack = true;
+        // 拥塞控制算法：reno、cubic或fixed（固定为windowSize）
+        String congestionControl = CONGESTION_CONTROL;
+        // 打印逐包日志和传输统计
+        boolean verbose = true;
+        // 非空时记录每个包从首次发送到被累积确认的时间
+        RTTStatistics deliveries;
+        // 非空时额外记录拥塞窗口的每次变化（字节）
+        RTTStatistics windows;
+        // 非空时传输该文件，总数据量取文件长度
+        Path file;
     }
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.out.println("用法: java ReliableUDPClient <主机> <端口>");
+            System.out.println("用法: java ReliableUDPClient <主机> <端口> [--bytes=B] [--window=W] [--min=N] [--max=N] [--no-sack] [--cc=reno|cubic|fixed] [--file=PATH] [--mtu=N|probe] [--no-pacing]");
             return;
         }
 
         try {
             String host = args[0];
             int port = Integer.parseInt(args[1]);
-            ReliableUDPClient client = new ReliableUDPClient(host, port);
+            TransferOptions options = new TransferOptions();
+            for (int i = 2; i < args.length; i++) {
+                String[] kv = args[i].split("=", 2);
+                switch (kv[0]) {
+                    case "--bytes": options.totalData = Long.parseLong(kv[1]); break;
+                    case "--window": options.windowSize = Integer.parseInt(kv[1]); break;
+                    case "--min": options.minPacketSize = Integer.parseInt(kv[1]); break;
+                    case "--max": options.maxPacketSize = Integer.parseInt(kv[1]); break;
+                    case "--no-sack": options.sack = false; break;
+                    case "--cc": options.congestionControl = kv[1]; break;
+                    case "--file": options.file = Paths.get(kv[1]); break;
+                    case "--mtu": options.mtu = kv[1].equals("probe") ? MTU_PROBE : Integer.parseInt(kv[1]); break;
+                    case "--no-pacing": options.pacing = false; break;
+                    default:
+                        System.out.println("未知选项: " + args[i]);
+                        return;
+                }
+            }
+            ReliableUDPClient client = new ReliableUDPClient(host, port, options);
             client.start();
         } catch (Exception e) {
             e.printStackTrace();
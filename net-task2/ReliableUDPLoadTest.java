@@ -0,0 +1,224 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// 可靠UDP负载测试：M个ReliableUDPClient并发传输，统计建连时间、每个数据包和每次传输的延迟分布以及有效吞吐量。
+// 所有发送方连接同一个服务器；未指定主机时在进程内启动一个多会话服务器
+public class ReliableUDPLoadTest {
+
+    public static void main(String[] args) throws Exception {
+        String host = null;
+        int port = 9200;
+        int senders = 20;
+        long totalBytes = 100000;
+        int minSize = 40;
+        int maxSize = 80;
+        int window = 65536;
+        boolean sack = true;
+        String cc = "reno";
+        int workers = Runtime.getRuntime().availableProcessors();
+        int mtu = 0;
+        boolean pacing = true;
+        double loss = 0.2;
+        int ackEvery = 1;
+
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "--host": host = kv[1]; break;
+                case "--port": port = Integer.parseInt(kv[1]); break;
+                case "--senders": senders = Integer.parseInt(kv[1]); break;
+                case "--bytes": totalBytes = Long.parseLong(kv[1]); break;
+                case "--min": minSize = Integer.parseInt(kv[1]); break;
+                case "--max": maxSize = Integer.parseInt(kv[1]); break;
+                case "--window": window = Integer.parseInt(kv[1]); break;
+                case "--no-sack": sack = false; break;
+                case "--cc": cc = kv[1]; break;
+                case "--workers": workers = Integer.parseInt(kv[1]); break;
+                case "--mtu": mtu = kv[1].equals("probe") ? ReliableUDPClient.MTU_PROBE : Integer.parseInt(kv[1]); break;
+                case "--no-pacing": pacing = false; break;
+                case "--loss": loss = Double.parseDouble(kv[1]); break;
+                case "--ack-every": ackEvery = Integer.parseInt(kv[1]); break;
+                default:
+                    System.out.println("用法: java ReliableUDPLoadTest [--senders=M] [--bytes=B] [--min=N] [--max=N] "
+                            + "[--window=W] [--no-sack] [--cc=reno|cubic|fixed] [--workers=N] [--host=H] [--port=P] "
+                            + "[--mtu=N|probe] [--no-pacing] [--loss=P] [--ack-every=N]");
+                    return;
+            }
+        }
+
+        // 服务器打印每个连接的日志，测试期间屏蔽标准输出
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ReliableUDPServer server = null;
+        if (host == null) {
+            host = "127.0.0.1";
+            ReliableUDPServer.ServerOptions serverOptions = new ReliableUDPServer.ServerOptions();
+            // 接收窗口不小于发送窗口上限，否则大窗口的测试实际受接收窗口限制
+            serverOptions.receiveWindow = Math.max(ReliableUDPServer.RECEIVE_WINDOW, window);
+            serverOptions.workers = workers;
+            serverOptions.lossRate = loss;
+            serverOptions.ackEvery = ackEvery;
+            server = new ReliableUDPServer(port, serverOptions);
+            ReliableUDPServer inProcess = server;
+            Thread thread = new Thread(() -> {
+                try {
+                    inProcess.start();
+                } catch (IOException e) {
+                    System.err.println("服务器异常: " + e.getMessage());
+                }
+            }, "udp-server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        Sender[] loadSenders = new Sender[senders];
+        Thread[] threads = new Thread[senders];
+        CountDownLatch start = new CountDownLatch(1);
+        // 各发送方并发记录到同一组统计中
+        RTTStatistics setup = new RTTStatistics();
+        RTTStatistics packets = new RTTStatistics();
+        RTTStatistics transfers = new RTTStatistics();
+        RTTStatistics windows = new RTTStatistics();
+        for (int i = 0; i < senders; i++) {
+            ReliableUDPClient.TransferOptions options = new ReliableUDPClient.TransferOptions();
+            options.totalData = totalBytes;
+            options.minPacketSize = minSize;
+            options.maxPacketSize = maxSize;
+            options.windowSize = window;
+            options.sack = sack;
+            options.congestionControl = cc;
+            options.mtu = mtu;
+            options.pacing = pacing;
+            options.verbose = false;
+            options.deliveries = packets;
+            options.windows = windows;
+            Sender sender = new Sender(host, port, options, setup, transfers);
+            loadSenders[i] = sender;
+            threads[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    sender.run();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "udp-sender-" + i);
+            threads[i].start();
+        }
+
+        // 所有发送方同时开始
+        long runStart = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - runStart) / 1e9;
+        System.setOut(console);
+
+        long bytes = 0;
+        long sent = 0;
+        long resent = 0;
+        long fastResent = 0;
+        long lossEvents = 0;
+        long timeoutEvents = 0;
+        int failed = 0;
+        for (Sender sender : loadSenders) {
+            bytes += sender.bytes;
+            sent += sender.sent;
+            resent += sender.resent;
+            fastResent += sender.fastResent;
+            lossEvents += sender.lossEvents;
+            timeoutEvents += sender.timeoutEvents;
+            if (sender.error != null) {
+                failed++;
+                if (failed == 1) {
+                    System.err.println("发送方异常: " + sender.error.getMessage());
+                }
+            }
+        }
+
+        System.out.printf("发送方: %d, 每个发送方 %d 字节, 包大小 %s, 窗口上限 %d 字节, SACK %s, 拥塞控制 %s, 节奏发送 %s, "
+                        + "服务器工作线程 %d%n",
+                senders, totalBytes, mtu == 0 ? minSize + "~" + maxSize : "MTU " + (mtu < 0 ? "探测" : mtu), window,
+                sack ? "开启" : "关闭", cc, pacing ? "开启" : "关闭", workers);
+        System.out.printf("建连:   p50=%.2f ms p99=%.2f ms 最大=%.2f ms%n",
+                setup.percentile(50) / 1e6, setup.percentile(99) / 1e6, setup.max() / 1e6);
+        System.out.printf("数据包: p50=%.2f ms p99=%.2f ms p99.9=%.2f ms 最大=%.2f ms%n",
+                packets.percentile(50) / 1e6, packets.percentile(99) / 1e6, packets.percentile(99.9) / 1e6,
+                packets.max() / 1e6);
+        System.out.printf("传输:   p50=%.1f ms p99=%.1f ms p99.9=%.1f ms 最大=%.1f ms%n",
+                transfers.percentile(50) / 1e6, transfers.percentile(99) / 1e6, transfers.percentile(99.9) / 1e6,
+                transfers.max() / 1e6);
+        System.out.printf("有效吞吐量: %.2f KB/s (%.1f Mbit/s), 发送 %d 包, 重传 %d 包（快速重传 %d）, 失败 %d 个发送方%n",
+                bytes / 1e3 / seconds, bytes * 8 / 1e6 / seconds, sent, resent, fastResent, failed);
+        System.out.printf("拥塞窗口: p50=%d p99=%d 最大=%d 字节, 丢包降窗 %d 次, 超时降窗 %d 次%n",
+                windows.percentile(50), windows.percentile(99), windows.max(), lossEvents, timeoutEvents);
+        // 进程内服务器收到的数据包和发出的确认：延迟确认省下的确认报文
+        long serverData = server != null ? server.getDataReceived() : -1;
+        long serverAcks = server != null ? server.getAcksSent() : -1;
+        if (server != null) {
+            System.out.printf("服务器: 每 %d 个按序包确认一次, 收到数据包 %d 个 (%.0f 包/秒), 发送确认 %d 个 (%.0f 包/秒)%n",
+                    ackEvery, serverData, serverData / seconds, serverAcks, serverAcks / seconds);
+        }
+
+        // 机器可读的汇总
+        System.out.printf(Locale.ROOT, "{\"server\": \"udp\", \"senders\": %d, \"bytes\": %d, \"min\": %d, \"max\": %d, "
+                        + "\"window\": %d, \"sack\": %b, \"cc\": \"%s\", \"mtu\": %d, \"pacing\": %b, \"loss\": %.3f, \"ackEvery\": %d, "
+                        + "\"workers\": %d, \"seconds\": %.3f, \"failed\": %d, \"sent\": %d, "
+                        + "\"resent\": %d, \"fastResent\": %d, \"lossEvents\": %d, \"timeoutEvents\": %d, "
+                        + "\"goodputBytesPerSecond\": %.1f, \"setupNanos\": %s, \"packetNanos\": %s, "
+                        + "\"transferNanos\": %s, \"cwndBytes\": %s, \"serverDataPackets\": %d, \"serverAcks\": %d}%n",
+                senders, totalBytes, minSize, maxSize, window, sack, cc, mtu, pacing, loss, ackEvery, workers, seconds, failed, sent, resent, fastResent,
+                lossEvents, timeoutEvents, bytes / seconds,
+                setup.toJson(), packets.toJson(), transfers.toJson(), windows.toJson(), serverData, serverAcks);
+        System.exit(0);
+    }
+
+    // 一个发送方：运行一个不打印日志的ReliableUDPClient
+    private static class Sender implements Runnable {
+        private final String host;
+        private final int port;
+        private final ReliableUDPClient.TransferOptions options;
+        private final RTTStatistics setup;
+        private final RTTStatistics transfers;
+        long bytes;
+        int sent;
+        int resent;
+        int fastResent;
+        int lossEvents;
+        int timeoutEvents;
+        Exception error;
+
+        public Sender(String host, int port, ReliableUDPClient.TransferOptions options,
+                      RTTStatistics setup, RTTStatistics transfers) {
+            this.host = host;
+            this.port = port;
+            this.options = options;
+            this.setup = setup;
+            this.transfers = transfers;
+        }
+
+        @Override
+        public void run() {
+            long transferStart = System.nanoTime();
+            ReliableUDPClient client = null;
+            try {
+                client = new ReliableUDPClient(host, port, options);
+                client.start();
+                setup.record(client.getSetupNanos());
+                transfers.record(System.nanoTime() - transferStart);
+                bytes = options.totalData;
+            } catch (Exception e) {
+                error = e;
+            }
+            if (client != null) {
+                sent = client.getTotalSent();
+                resent = client.getTotalResent();
+                fastResent = client.getFastResent();
+                lossEvents = client.getLossEvents();
+                timeoutEvents = client.getTimeoutEvents();
+            }
+        }
+    }
+}
\ No newline at end of file
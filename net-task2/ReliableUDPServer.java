@@ -1,132 +1,757 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
 
+// 多会话服务器：连接表以客户端地址、端口和报文中的连接ID为键，每个会话有独立的接收状态，空闲超时的会话被移除。
+// 会话按工作线程分片：每个工作线程有自己的套接字，都以SO_REUSEPORT绑定同一端口，内核按客户端地址把报文
+// 固定分给其中一个套接字，所以同一会话的报文总由同一个线程处理，会话状态不需要加锁
 public class ReliableUDPServer {
-    private static final int BUFFER_SIZE = 1024;
-    private static final double LOSS_RATE = 0.2; // 20%丢包率
-
-    private DatagramSocket socket;
-    private int port;
-    private Random random = new Random();
-
-    // 接收状态
-    private int expectedSeq = 0; // 下一个期望的字节序号
-    private Map<Integer, byte[]> outOfOrder = new TreeMap<>(); // 乱序包缓存
-    private Set<Integer> processedPackets = new HashSet<>(); // 已处理包记录
-
-    public ReliableUDPServer(int port) throws SocketException {
-        this.port = port;
-        this.socket = new DatagramSocket(port);
-        System.out.println("服务器启动，端口: " + port);
+    private static final int BUFFER_SIZE = 65536; // 能容纳最大的UDP数据报，客户端的包大小可以达到路径MTU
+    private static final double LOSS_RATE = 0.2; // 默认20%丢包率
+    static final int RECEIVE_WINDOW = 65536; // 接收缓冲区容量（字节）
+    private static final int IDLE_TIMEOUT = 30000; // 会话空闲超时(ms)
+    private static final int MAX_SESSIONS = 1024;  // 每个工作线程的会话数上限，超出后忽略新的连接请求
+    private static final int FIN_LINGER = 5000;    // 收到FIN后会话保留的时间(ms)，重传的FIN得到同样的FIN-ACK
+    private static final int SWEEP_INTERVAL = 1000; // 检查空闲会话的间隔(ms)
+    private static final int SOCKET_BUFFER = 4 << 20; // 套接字接收缓冲区，容纳大量会话同时到达的突发（受系统上限约束）
+    private static final int ACK_EVERY = 1;   // 每收到几个按序数据包确认一次，1表示逐包确认
+    private static final int ACK_DELAY = 2;   // 延迟确认的最长等待时间(ms)，远小于客户端的超时下限
+
+    // 文件传输时FIN-ACK的负载：文件状态和服务器计算的CRC32C，各4字节
+    static final int FILE_STORED = 0;      // 完整保存，校验和与客户端一致
+    static final int FILE_INCOMPLETE = 1;  // 数据不完整或校验和不一致
+    static final int FILE_FAILED = 2;      // 创建或写入文件失败，收到的数据没有保存
+
+    private final int port;
+    private final int receiveWindow;
+    private final int readRate;       // 应用每秒读取的字节数，0表示收到即读走
+    private final double lossRate;    // 对新数据包模拟的丢包率
+    private final Path outputDir;     // 接收文件的保存目录，null表示丢弃收到的数据
+    private final int ackEvery;
+    private final boolean verbose;    // 打印逐包日志
+    private final Worker[] workers;
+    private volatile boolean closed;
+
+    // 所有工作线程收到的数据包数和发出的确认数，衡量延迟确认省下的报文
+    private final LongAdder dataReceived = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+
+    public ReliableUDPServer(int port) throws IOException {
+        this(port, new ServerOptions());
     }
 
+    public ReliableUDPServer(int port, ServerOptions options) throws IOException {
+        this.receiveWindow = options.receiveWindow;
+        this.readRate = options.readRate;
+        this.lossRate = options.lossRate;
+        this.outputDir = options.outputDir;
+        this.ackEvery = Math.max(1, options.ackEvery);
+        this.verbose = options.verbose;
+        int workerCount = options.workers;
+
+        // 不支持SO_REUSEPORT的平台只能用一个套接字，退回单个工作线程
+        DatagramSocket first = new DatagramSocket(null);
+        if (workerCount > 1 && !first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            System.out.println("平台不支持SO_REUSEPORT，使用单个工作线程");
+            workerCount = 1;
+        }
+        this.workers = new Worker[Math.max(1, workerCount)];
+        try {
+            workers[0] = new Worker(bind(first, port));
+            // 端口为0时由系统分配，其余套接字绑定到同一端口
+            this.port = first.getLocalPort();
+            for (int i = 1; i < workers.length; i++) {
+                workers[i] = new Worker(bind(new DatagramSocket(null), this.port));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        System.out.println("服务器启动，端口: " + this.port + "，工作线程: " + workers.length);
+    }
+
+    private DatagramSocket bind(DatagramSocket socket, int port) throws IOException {
+        try {
+            if (workers.length > 1) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.setSoTimeout(SWEEP_INTERVAL);
+            socket.setReceiveBufferSize(SOCKET_BUFFER);
+            socket.bind(new InetSocketAddress(port));
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    long getDataReceived() { return dataReceived.sum(); }
+    long getAcksSent() { return acksSent.sum(); }
+
+    // 在其他线程中运行其余工作线程，当前线程运行第一个；close()之后返回
     public void start() throws IOException {
-        while (true) {
-            byte[] buffer = new byte[BUFFER_SIZE];
-            DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
-            socket.receive(datagram);
+        for (int i = 1; i < workers.length; i++) {
+            Worker worker = workers[i];
+            Thread thread = new Thread(() -> {
+                try {
+                    worker.serve();
+                } catch (IOException e) {
+                    System.err.println("工作线程异常: " + e.getMessage());
+                }
+            }, "udp-worker-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        try {
+            workers[0].serve();
+        } finally {
+            close();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        for (Worker worker : workers) {
+            if (worker != null) {
+                worker.socket.close();
+            }
+        }
+    }
+
+    // 连接表的键。工作线程用一个可变的实例查表，插入时复制一份
+    private static final class SessionKey {
+        private InetAddress address;
+        private int port;
+        private int connectionId;
+
+        SessionKey set(InetAddress address, int port, int connectionId) {
+            this.address = address;
+            this.port = port;
+            this.connectionId = connectionId;
+            return this;
+        }
+
+        SessionKey copy() {
+            return new SessionKey().set(address, port, connectionId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return port == other.port && connectionId == other.connectionId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return (address.hashCode() * 31 + port) * 31 + connectionId;
+        }
+    }
+
+    // 一个连接的接收状态。报文中的序列号是客户端的初始序列号加字节偏移，按32位回绕；
+    // 会话内部一律使用64位字节偏移，收到报文时按序列号算术还原，发送确认时再加上初始序列号
+    private class Session {
+        private final int connectionId;
+        private final int isn;           // 客户端在SYN中选定的初始序列号，对应字节偏移0
+        private final InetAddress address;
+        private final int port;
+        private long expectedSeq = 0;    // 下一个期望的字节偏移
+        // 已收到的乱序数据段，也用来识别重传包；内存只与空洞数有关
+        private final IntervalSet received = new IntervalSet();
+
+        // 文件传输：数据按偏移直接写入预先分配好长度的文件，不在内存中缓存；
+        // 数据按序推进时计算CRC32C，结束时与客户端在FIN中携带的校验和比较
+        private boolean fileTransfer;    // SYN携带了文件头且服务器指定了保存目录
+        private Path file;
+        private FileChannel channel;
+        private long fileLength;
+        private boolean stored;          // 文件已完整保存并通过校验
+        private boolean finished;        // 已处理FIN，等待FIN_LINGER后移除
+        private int fileStatus;          // 处理FIN时确定的文件状态，重传的FIN按它回复
+        private final CRC32C checksum = new CRC32C();
+
+        // 流量控制：按序收到的数据先进入接收缓冲区，由应用按readRate读走；
+        // 确认报文通告缓冲区剩余空间，超出窗口的数据直接丢弃
+        private double unread;            // 缓冲区中尚未被应用读走的字节数
+        private long lastRead = System.nanoTime();
+        private long lastActive;          // 最近一次收到报文的时间(ms)
+
+        // 延迟确认：尚未确认的按序数据包数、其中最早一个的时间戳（确认时回显，客户端测得的RTT包含等待时间）
+        // 以及最迟的确认时间(System.nanoTime)
+        private int unacked;
+        private long unackedEcho;
+        private long ackDeadline;
+        private int ackEntries;           // 在工作线程的待确认队列中的记录数，只有最后一条有效
+        private long dataPackets;
+        private long acks;
+
+        Session(int connectionId, int isn, InetAddress address, int port) {
+            this.connectionId = connectionId;
+            this.isn = isn;
+            this.address = address;
+            this.port = port;
+        }
+
+        // 报文中的序列号还原为字节偏移；确认号和SACK块反过来编码
+        long offset(int seq) {
+            return Packet.unwrap(seq - isn, expectedSeq);
+        }
+
+        int wire(long offset) {
+            return isn + (int) offset;
+        }
+
+        // 模拟应用读取：按读取速率扣除上次以来应用读走的数据
+        void drainReadBuffer() {
+            long now = System.nanoTime();
+            if (readRate == 0) {
+                unread = 0;
+            } else {
+                unread = Math.max(0, unread - (now - lastRead) / 1e9 * readRate);
+            }
+            lastRead = now;
+        }
+
+        // 接收缓冲区的剩余空间，不改变任何状态
+        int advertisedWindow() {
+            return (int) Math.max(0, receiveWindow - Math.ceil(unread));
+        }
+
+        // 写入或读回文件出错：关闭文件，之后的数据照常确认但不再保存，FIN-ACK报告FILE_FAILED
+        void storageFailed(IOException e) {
+            System.err.println("写入文件 " + file + " 失败: " + e.getMessage());
+            closeChannel();
+        }
+
+        // 关闭文件；没有完整保存的文件改名为.partial，不与完整的文件混淆
+        void close() {
+            closeChannel();
+            if (file != null && !stored) {
+                // 同样不覆盖已有文件：.partial已存在时依次尝试.partial.1、.partial.2……
+                String name = file.getFileName() + ".partial";
+                for (int i = 0; file != null; i++) {
+                    Path partial = file.resolveSibling(i == 0 ? name : name + "." + i);
+                    try {
+                        Files.move(file, partial);
+                        System.out.println("文件没有完整保存，已改名为 " + partial);
+                        file = null;
+                    } catch (FileAlreadyExistsException e) {
+                        continue;
+                    } catch (IOException e) {
+                        System.err.println("重命名文件失败: " + e.getMessage());
+                        file = null;
+                    }
+                }
+            }
+        }
+
+        private void closeChannel() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    System.err.println("关闭文件失败: " + e.getMessage());
+                }
+                channel = null;
+            }
+        }
+    }
+
+    // 工作线程：独占一个套接字和一个连接表分片，收发缓冲区和报文对象在所有会话间复用
+    private class Worker {
+        private final DatagramSocket socket;
+        private final Map<SessionKey, Session> sessions = new HashMap<>();
+        private final SessionKey lookup = new SessionKey();
+        private final Random random = new Random();
+        private long lastSweep = System.currentTimeMillis();
+        private int ignoredSyns;          // 上次检查以来因会话数已满而忽略的连接请求数
+        // 有延迟确认的会话，按确认时间的先后排列
+        private final ArrayDeque<Session> pendingAcks = new ArrayDeque<>();
+        private int timeout = SWEEP_INTERVAL;
+
+        private final byte[] receiveBuffer = new byte[BUFFER_SIZE];
+        private final DatagramPacket receiveDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        private final ByteBuffer receiveView = ByteBuffer.wrap(receiveBuffer);
+        private final Packet received = Packet.allocate(0, false);
+        private final Packet reply = Packet.allocate(Packet.MAX_SACK_BLOCKS * 8, false);
+        // 乱序数据变为按序时从文件读回计算校验和
+        private final ByteBuffer readBack = ByteBuffer.allocateDirect(64 * 1024);
+        private final DatagramPacket sendDatagram = new DatagramPacket(new byte[0], 0);
+
+        Worker(DatagramSocket socket) {
+            this.socket = socket;
+        }
 
-            Packet packet = Packet.deserialize(
-                    Arrays.copyOf(datagram.getData(), datagram.getLength())
-            );
-            InetAddress clientAddr = datagram.getAddress();
-            int clientPort = datagram.getPort();
+        void serve() throws IOException {
+            try {
+                receiveLoop();
+            } finally {
+                for (Session session : sessions.values()) {
+                    session.close();
+                }
+            }
+        }
+
+        private void receiveLoop() throws IOException {
+            boolean idle = false;
+            while (!closed) {
+                receiveDatagram.setLength(receiveBuffer.length);
+                setTimeout(idle);
+                try {
+                    socket.receive(receiveDatagram);
+                    idle = false;
+                } catch (SocketTimeoutException e) {
+                    idle = true;
+                    flushAcks();
+                    sweep();
+                    continue;
+                } catch (SocketException e) {
+                    if (closed) {
+                        return;
+                    }
+                    throw e;
+                }
+
+                // 直接在接收缓冲区上解析，不复制报文
+                receiveView.clear().limit(receiveDatagram.getLength());
+                Packet packet = received.view(receiveView);
+                if (packet != null) {
+                    dispatch(packet, receiveDatagram.getAddress(), receiveDatagram.getPort());
+                }
+                flushAcks();
+                sweep();
+            }
+        }
+
+        // 有待发的延迟确认时，接收最多等待ACK_DELAY，到期的确认由flushAcks在醒来后发出；
+        // 直到一次接收超时且没有待发的确认时才恢复为SWEEP_INTERVAL。数据流中超时保持不变，不必每个包调用一次setSoTimeout
+        private void setTimeout(boolean idle) throws SocketException {
+            prunePendingAcks();
+            int next = timeout;
+            if (!pendingAcks.isEmpty()) {
+                next = ACK_DELAY;
+            } else if (idle) {
+                next = SWEEP_INTERVAL;
+            }
+            if (next != timeout) {
+                socket.setSoTimeout(next);
+                timeout = next;
+            }
+        }
+
+        // 发出已到期的延迟确认
+        private void flushAcks() throws IOException {
+            long now = System.nanoTime();
+            prunePendingAcks();
+            while (!pendingAcks.isEmpty() && pendingAcks.peekFirst().ackDeadline <= now) {
+                Session session = pendingAcks.pollFirst();
+                session.ackEntries--;
+                session.drainReadBuffer();
+                sendAck(session, session.unackedEcho, session.expectedSeq - 1);
+                prunePendingAcks();
+            }
+        }
+
+        // 丢弃队首已经随其他确认发出的记录，以及同一会话后来又加入队列的旧记录；之后队首就是最早到期的延迟确认
+        private void prunePendingAcks() {
+            while (!pendingAcks.isEmpty()) {
+                Session session = pendingAcks.peekFirst();
+                if (session.ackEntries == 1 && session.unacked > 0) {
+                    return;
+                }
+                pendingAcks.pollFirst();
+                session.ackEntries--;
+            }
+        }
+
+        private void dispatch(Packet packet, InetAddress clientAddr, int clientPort) throws IOException {
+            lookup.set(clientAddr, clientPort, packet.getConnectionId());
+            Session session = sessions.get(lookup);
 
             // 处理连接请求
             if ((packet.getType() & Packet.SYN) != 0) {
-                handleSYN(packet, clientAddr, clientPort);
+                if (session == null) {
+                    // 会话数已满时不建立会话也不回复，客户端的连接请求超时失败，已有会话不受影响
+                    if (sessions.size() >= MAX_SESSIONS) {
+                        ignoredSyns++;
+                        return;
+                    }
+                    session = new Session(packet.getConnectionId(), packet.getSeqNumber(), clientAddr, clientPort);
+                    sessions.put(lookup.copy(), session);
+                    System.out.println("收到来自 " + clientAddr + " 的连接请求，连接ID: " + session.connectionId);
+                    if (outputDir != null && packet.getLength() >= 8) {
+                        session.fileTransfer = true;
+                        openFile(session, packet);
+                    }
+                }
+                session.lastActive = System.currentTimeMillis();
+                handleSYN(session, packet, clientAddr, clientPort);
             }
-            // 处理数据包
+            // 处理数据包，未知连接（未建立或已超时移除）和已结束连接的数据直接丢弃
             else if ((packet.getType() & Packet.DATA) != 0) {
-                handleData(packet, clientAddr, clientPort);
+                if (session != null && !session.finished) {
+                    session.lastActive = System.currentTimeMillis();
+                    handleData(session, packet);
+                }
             }
-            // 处理结束请求
+            // 处理结束请求，会话保留FIN_LINGER后由sweep移除
             else if ((packet.getType() & Packet.FIN) != 0) {
-                handleFIN(clientAddr, clientPort);
-                break;
+                handleFIN(session, packet, clientAddr, clientPort);
             }
         }
-        socket.close();
-    }
 
-    private void handleSYN(Packet packet, InetAddress clientAddr, int clientPort)
-            throws IOException {
-        System.out.println("收到来自 " + clientAddr + " 的连接请求");
-        Packet synAck = new Packet(Packet.SYN_ACK, 0, packet.getSeqNumber() + 1, null);
-        sendPacket(synAck, clientAddr, clientPort);
-    }
+        // 每隔SWEEP_INTERVAL移除空闲超过IDLE_TIMEOUT和结束超过FIN_LINGER的会话，并报告期间被忽略的连接请求
+        private void sweep() {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < SWEEP_INTERVAL) {
+                return;
+            }
+            lastSweep = now;
+            if (ignoredSyns > 0) {
+                System.out.printf("会话数已达上限 %d，忽略了 %d 个连接请求%n", MAX_SESSIONS, ignoredSyns);
+                ignoredSyns = 0;
+            }
+            Iterator<Session> it = sessions.values().iterator();
+            while (it.hasNext()) {
+                Session session = it.next();
+                if (session.finished) {
+                    if (now - session.lastActive > FIN_LINGER) {
+                        it.remove();
+                    }
+                } else if (now - session.lastActive > IDLE_TIMEOUT) {
+                    System.out.println("连接 " + session.connectionId + " 空闲超时，已移除");
+                    session.close();
+                    it.remove();
+                }
+            }
+        }
+
+        // SYN的负载为文件长度（8字节）和UTF-8文件名，只取文件名的最后一段，文件保存在outputDir中。
+        // 不覆盖已有文件：同名文件已存在时在文件名后加上连接ID。创建失败时会话照常确认数据但不保存，FIN-ACK报告FILE_FAILED
+        private void openFile(Session session, Packet packet) {
+            long length = packet.getPayloadLong(0);
+            byte[] payload = packet.getPayload();
+            String name = new String(payload, 8, payload.length - 8, StandardCharsets.UTF_8);
+            Path fileName;
+            try {
+                fileName = Paths.get(name).getFileName();
+            } catch (InvalidPathException e) {
+                fileName = null;
+            }
+            if (fileName == null || fileName.toString().equals("..") || fileName.toString().equals(".")) {
+                fileName = Paths.get("received-" + session.connectionId);
+            }
+            if (length < 0) {
+                System.out.println("文件长度无效，丢弃数据: " + length);
+                return;
+            }
+            session.fileLength = length;
 
-    private void handleData(Packet packet, InetAddress clientAddr, int clientPort)
-            throws IOException {
-        int seq = packet.getSeqNumber();
-        int length = packet.getLength();
+            Path path = outputDir.resolve(fileName);
+            try {
+                session.channel = createFile(path, length);
+            } catch (FileAlreadyExistsException e) {
+                path = outputDir.resolve(fileName + "-" + session.connectionId);
+                try {
+                    session.channel = createFile(path, length);
+                } catch (IOException e2) {
+                    System.err.println("无法创建文件 " + path + ": " + e2);
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("无法创建文件 " + path + ": " + e.getMessage());
+                return;
+            }
+            session.file = path;
+            System.out.printf("接收文件 %s，%d 字节%n", path, length);
+        }
 
-        // 检查是否已处理过
-        if (seq < expectedSeq) {
-            // 重复包，直接忽略
-            return;
+        // 新建文件并按长度预先分配（写入最后一个字节，文件系统支持时为稀疏文件）；分配失败时关闭并删除文件
+        private FileChannel createFile(Path path, long length) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            try {
+                if (length > 0) {
+                    channel.write(ByteBuffer.allocate(1), length - 1);
+                }
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                Files.deleteIfExists(path);
+                throw e;
+            }
         }
 
-        // 检查是否为重传包
-        boolean isRetransmission = processedPackets.contains(seq);
+        private void handleSYN(Session session, Packet packet, InetAddress clientAddr, int clientPort)
+                throws IOException {
+            reply.set(Packet.SYN_ACK, 0, packet.getSeqNumber() + 1, packet.getTimestamp())
+                    .setWindow(session.advertisedWindow())
+                    .setConnectionId(session.connectionId);
+            sendPacket(reply, clientAddr, clientPort);
+        }
 
-        // 对新包应用丢包率
-        if (!isRetransmission && random.nextDouble() < LOSS_RATE) {
-            System.out.printf("模拟丢包: 字节 %d~%d%n", seq, seq + length - 1);
-            return;
+        private void handleData(Session session, Packet packet) throws IOException {
+            long seq = session.offset(packet.getSeqNumber());
+            int length = packet.getLength();
+            session.dataPackets++;
+            dataReceived.increment();
+            session.drainReadBuffer();
+
+            // 检查是否已处理过
+            if (seq < session.expectedSeq) {
+                // 重复包，直接忽略
+                return;
+            }
+            if (session.channel != null && seq + length > session.fileLength) {
+                // 超出文件长度
+                return;
+            }
+
+            // 超出接收窗口的数据没有缓冲空间，丢弃后仍然确认，客户端由此得知最新的窗口
+            if (seq + length > session.expectedSeq + session.advertisedWindow()) {
+                if (verbose) {
+                    System.out.printf("超出接收窗口，丢弃: 字节 %d~%d%n", seq, seq + length - 1);
+                }
+                sendAck(session, packet.getTimestamp(), seq);
+                return;
+            }
+
+            // 检查是否为重传包：已经收到过的乱序数据
+            boolean isRetransmission = session.received.covers(seq, seq + length);
+
+            // 对新包应用丢包率
+            if (!isRetransmission && random.nextDouble() < lossRate) {
+                if (verbose) {
+                    System.out.printf("模拟丢包: 字节 %d~%d%n", seq, seq + length - 1);
+                }
+                return;
+            }
+
+            boolean inOrder = false;
+            if (!isRetransmission) {
+                // 直接写到文件中的对应位置
+                if (session.channel != null) {
+                    try {
+                        packet.writePayload(session.channel, seq);
+                    } catch (IOException e) {
+                        session.storageFailed(e);
+                    }
+                }
+
+                // 按序接收处理
+                if (seq == session.expectedSeq) {
+                    // 处理当前包
+                    long before = session.expectedSeq;
+                    if (session.channel != null) {
+                        packet.updateChecksum(session.checksum);
+                    }
+                    session.expectedSeq += length;
+
+                    // 之前收到的乱序数据随之变为按序，校验和从文件读回计算
+                    long end = session.received.advance(session.expectedSeq);
+                    if (end > session.expectedSeq && session.channel != null) {
+                        try {
+                            updateChecksum(session, session.expectedSeq, end);
+                        } catch (IOException e) {
+                            session.storageFailed(e);
+                        }
+                    }
+                    // 没有乱序数据时才是单纯的按序到达；填补了空洞或后面仍有空洞时需要立即确认
+                    inOrder = end == session.expectedSeq && session.received.isEmpty();
+                    session.expectedSeq = end;
+                    session.unread += session.expectedSeq - before;
+                } else {
+                    // 记录乱序数据段
+                    session.received.add(seq, seq + length);
+                }
+            }
+
+            // 延迟确认只用于按序到达的包；乱序到达、填补空洞和重传的包立即确认，不拖慢客户端的丢包恢复
+            if (inOrder && ackEvery > 1) {
+                delayAck(session, packet.getTimestamp(), seq);
+            } else {
+                sendAck(session, packet.getTimestamp(), seq);
+            }
         }
 
-        // 标记为已处理
-        processedPackets.add(seq);
+        // 每ackEvery个按序数据包确认一次，不足时最迟在ACK_DELAY后由flushAcks确认
+        private void delayAck(Session session, long echo, long seq) throws IOException {
+            if (session.unacked == 0) {
+                session.unackedEcho = echo;
+                session.ackDeadline = System.nanoTime() + ACK_DELAY * 1_000_000L;
+                session.ackEntries++;
+                pendingAcks.addLast(session);
+            }
+            if (++session.unacked >= ackEvery) {
+                sendAck(session, session.unackedEcho, seq);
+            }
+        }
 
-        // 按序接收处理
-        if (seq == expectedSeq) {
-            // 处理当前包
-            expectedSeq += length;
+        // 发送累积确认，回显触发本次确认的数据包的时间戳，客户端据此计算RTT；
+        // 附带SACK块告知已收到的乱序数据，客户端只需重传真正缺失的部分；同时通告接收窗口
+        private void sendAck(Session session, long echo, long seq) throws IOException {
+            int window = session.advertisedWindow();
+            reply.set(Packet.ACK, 0, session.wire(session.expectedSeq), echo)
+                    .setWindow(window)
+                    .setConnectionId(session.connectionId);
+            addSackBlocks(session, reply, seq);
+            sendPacket(reply, session.address, session.port);
+            session.unacked = 0;
+            session.acks++;
+            acksSent.increment();
+            if (!verbose) {
+                return;
+            }
+            if (reply.getSackCount() > 0) {
+                System.out.printf("确认字节: %d (累积确认), SACK %d 块, 窗口 %d%n",
+                        session.expectedSeq, reply.getSackCount(), window);
+            } else {
+                System.out.printf("确认字节: %d (累积确认), 窗口 %d%n", session.expectedSeq, window);
+            }
+        }
 
-            // 处理后续的缓存包
-            processBufferedPackets();
-        } else {
-            // 缓存乱序包
-            outOfOrder.put(seq, packet.getPayload());
+        // 从文件读回[from, to)计入校验和
+        private void updateChecksum(Session session, long from, long to) throws IOException {
+            long position = from;
+            while (position < to) {
+                readBack.clear().limit((int) Math.min(readBack.capacity(), to - position));
+                int n = session.channel.read(readBack, position);
+                if (n < 0) {
+                    throw new EOFException("文件被截短: " + session.file);
+                }
+                readBack.flip();
+                session.checksum.update(readBack);
+                position += n;
+            }
         }
 
-        // 发送累积确认
-        Packet ack = new Packet(Packet.ACK, 0, expectedSeq, null);
-        sendPacket(ack, clientAddr, clientPort);
-        System.out.printf("确认字节: %d (累积确认)%n", expectedSeq);
-    }
+        // 乱序数据段已经合并，按RFC 2018把包含本次收到的包的段放在最前，最多MAX_SACK_BLOCKS块
+        private void addSackBlocks(Session session, Packet ack, long recentSeq) {
+            IntervalSet blocks = session.received;
+            int recent = -1;
+            for (int i = 0; i < blocks.size(); i++) {
+                if (blocks.start(i) <= recentSeq && recentSeq < blocks.end(i)) {
+                    recent = i;
+                    ack.addSack(session.wire(blocks.start(i)), session.wire(blocks.end(i)));
+                }
+            }
+            for (int i = 0; i < blocks.size() && ack.getSackCount() < Packet.MAX_SACK_BLOCKS; i++) {
+                if (i != recent) {
+                    ack.addSack(session.wire(blocks.start(i)), session.wire(blocks.end(i)));
+                }
+            }
+        }
 
-    private void processBufferedPackets() {
-        // 检查缓存中是否有连续的包
-        while (outOfOrder.containsKey(expectedSeq)) {
-            byte[] data = outOfOrder.remove(expectedSeq);
-            expectedSeq += data.length;
+        // 会话已移除时同样回复FIN-ACK，客户端据此结束。文件传输的FIN携带客户端计算的CRC32C，
+        // FIN-ACK带回服务器按收到的数据计算的CRC32C
+        // 只有第一个FIN结束会话并确定文件状态；FIN-ACK丢失后客户端重传的FIN得到同样的回复
+        private void handleFIN(Session session, Packet packet, InetAddress clientAddr, int clientPort)
+                throws IOException {
+            if (session != null && !session.finished) {
+                System.out.println("收到结束请求，关闭连接 " + packet.getConnectionId());
+                session.finished = true;
+                session.lastActive = System.currentTimeMillis();
+                session.unacked = 0;
+                System.out.printf("连接 %d 收到数据包 %d 个，发送确认 %d 个%n",
+                        session.connectionId, session.dataPackets, session.acks);
+                if (session.fileTransfer) {
+                    session.fileStatus = finishFile(session, packet);
+                }
+            } else if (verbose) {
+                System.out.println("收到重复的结束请求，连接 " + packet.getConnectionId());
+            }
+            reply.set((byte)(Packet.ACK | Packet.FIN), 0, session != null ? session.wire(session.expectedSeq) : 0,
+                            packet.getTimestamp())
+                    .setConnectionId(packet.getConnectionId());
+            if (session != null && session.fileTransfer) {
+                reply.appendInt(session.fileStatus);
+                reply.appendInt((int) session.checksum.getValue());
+            }
+            sendPacket(reply, clientAddr, clientPort);
+        }
+
+        // 比较校验和并关闭文件，没有完整保存的文件改名为.partial，返回FIN-ACK中的文件状态
+        private int finishFile(Session session, Packet packet) {
+            int crc = (int) session.checksum.getValue();
+            int status;
+            if (session.channel == null) {
+                System.out.printf("连接 %d 的文件没有保存，%d/%d 字节%n",
+                        session.connectionId, session.expectedSeq, session.fileLength);
+                status = FILE_FAILED;
+            } else {
+                boolean complete = session.expectedSeq == session.fileLength;
+                boolean verified = complete && packet.getLength() >= 4 && packet.getPayloadInt(0) == crc;
+                System.out.printf("文件 %s 接收%s，%d/%d 字节，CRC32C %08x，校验%s%n", session.file,
+                        complete ? "完成" : "不完整", session.expectedSeq, session.fileLength, crc,
+                        verified ? "通过" : "失败");
+                status = verified ? FILE_STORED : FILE_INCOMPLETE;
+            }
+            session.stored = status == FILE_STORED;
+            session.close();
+            return status;
         }
-    }
 
-    private void handleFIN(InetAddress clientAddr, int clientPort) throws IOException {
-        System.out.println("收到结束请求，关闭连接");
-        Packet finAck = new Packet((byte)(Packet.ACK | Packet.FIN), 0, expectedSeq, null);
-        sendPacket(finAck, clientAddr, clientPort);
+        private void sendPacket(Packet packet, InetAddress addr, int port) throws IOException {
+            ByteBuffer frame = packet.frame();
+            sendDatagram.setData(frame.array(), frame.arrayOffset(), frame.limit());
+            sendDatagram.setAddress(addr);
+            sendDatagram.setPort(port);
+            socket.send(sendDatagram);
+        }
     }
 
-    private void sendPacket(Packet packet, InetAddress addr, int port) throws IOException {
-        byte[] data = packet.serialize();
-        DatagramPacket datagram = new DatagramPacket(data, data.length, addr, port);
-        socket.send(datagram);
+    // 服务器参数，默认值即上面的常量；负载测试据此在进程内创建服务器
+    static class ServerOptions {
+        // 接收缓冲区容量和应用读取速率（字节/秒，0表示收到即读走）
+        int receiveWindow = RECEIVE_WINDOW;
+        int readRate;
+        int workers = Runtime.getRuntime().availableProcessors();
+        // 非空时把文件传输的数据保存到该目录
+        Path outputDir;
+        double lossRate = LOSS_RATE;
+        // 大于1时启用延迟确认
+        int ackEvery = ACK_EVERY;
+        // 打印逐包日志；默认只打印连接级别的日志，逐包打印会让控制台输出成为吞吐量的瓶颈
+        boolean verbose;
     }
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("用法: java ReliableUDPServer <端口>");
+            System.out.println("用法: java ReliableUDPServer <端口> [--rwnd=B] [--read-rate=B/s] [--workers=N] [--out-dir=DIR] [--loss=P] [--ack-every=N] [--verbose]");
             return;
         }
 
         try {
             int port = Integer.parseInt(args[0]);
-            ReliableUDPServer server = new ReliableUDPServer(port);
+            ServerOptions options = new ServerOptions();
+            for (int i = 1; i < args.length; i++) {
+                String[] kv = args[i].split("=", 2);
+                switch (kv[0]) {
+                    case "--rwnd": options.receiveWindow = Integer.parseInt(kv[1]); break;
+                    case "--read-rate": options.readRate = Integer.parseInt(kv[1]); break;
+                    case "--workers": options.workers = Integer.parseInt(kv[1]); break;
+                    case "--out-dir": options.outputDir = Paths.get(kv[1]); break;
+                    case "--loss": options.lossRate = Double.parseDouble(kv[1]); break;
+                    case "--ack-every": options.ackEvery = Integer.parseInt(kv[1]); break;
+                    case "--verbose": options.verbose = true; break;
+                    default:
+                        System.out.println("未知选项: " + args[i]);
+                        return;
+                }
+            }
+            ReliableUDPServer server = new ReliableUDPServer(port, options);
             server.start();
         } catch (Exception e) {
             e.printStackTrace();
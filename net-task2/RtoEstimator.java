@@ -0,0 +1,47 @@
+// 按RFC 6298估计重传超时(RTO)：维护平滑RTT(SRTT)和RTT偏差(RTTVAR)，每个样本O(1)更新；
+// 超时后RTO指数退避，直到下一个有效样本到来时再按估计值重新计算
+public class RtoEstimator {
+    private static final double ALPHA = 1.0 / 8;  // SRTT的增益
+    private static final double BETA = 1.0 / 4;   // RTTVAR的增益
+    private static final int K = 4;
+
+    private final long minRto;
+    private final long maxRto;
+    private final long granularity;  // 时钟粒度G(ms)
+
+    private boolean measured;
+    private double srtt;
+    private double rttvar;
+    private long rto;
+
+    public RtoEstimator(long initialRto, long minRto, long maxRto, long granularity) {
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+        this.granularity = granularity;
+        this.rto = initialRto;
+    }
+
+    // 加入一个RTT样本(ms)，调用方需保证样本没有歧义（时间戳回显或未重传的包）
+    public void sample(double rtt) {
+        if (!measured) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        long value = (long) Math.ceil(srtt + Math.max(granularity, K * rttvar));
+        rto = Math.max(minRto, Math.min(maxRto, value));
+    }
+
+    // 重传定时器超时后RTO加倍
+    public void backoff() {
+        rto = Math.min(maxRto, rto * 2);
+    }
+
+    public long rto() { return rto; }
+    public double srtt() { return srtt; }
+    public double rttvar() { return rttvar; }
+    public boolean isMeasured() { return measured; }
+}
\ No newline at end of file
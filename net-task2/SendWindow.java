@@ -0,0 +1,129 @@
+// 发送窗口：按发送顺序保存未确认的数据包，用环形缓冲区和并列的基本类型数组实现，避免装箱。
+// 数据包的字节区间首尾相接，累积确认只需从最早的包开始依次出队，开销与被确认的包数成正比
+public class SendWindow {
+    private final int mask;
+    private final long[] seqs;       // 起始字节（64位偏移，不随报文中的序列号回绕）
+    private final int[] lengths;     // 负载长度
+    private final int[] numbers;     // 包编号（从1开始）
+    private final int[] retries;     // 重传次数，-1表示已放弃
+    private final long[] sendTimes;  // 最近一次发送时间(System.nanoTime)
+    private final long[] firstSendTimes; // 首次发送时间
+    private final boolean[] sacked;  // 已被SACK块确认
+    private final boolean[] fastResent; // 已快速重传过
+    private final Packet[] packets;  // 用于重传的报文
+
+    // 未确认的包位于序号[head, tail)，槽位为序号 & mask
+    private int head;
+    private int tail;
+
+    public SendWindow(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.seqs = new long[size];
+        this.lengths = new int[size];
+        this.numbers = new int[size];
+        this.retries = new int[size];
+        this.sendTimes = new long[size];
+        this.firstSendTimes = new long[size];
+        this.sacked = new boolean[size];
+        this.fastResent = new boolean[size];
+        this.packets = new Packet[size];
+    }
+
+    // 记录新发送的包，返回其槽位
+    public int add(long seq, int length, int number, long sendTime, Packet packet) {
+        if (isFull()) {
+            throw new IllegalStateException("发送窗口已满");
+        }
+        int slot = tail++ & mask;
+        seqs[slot] = seq;
+        lengths[slot] = length;
+        numbers[slot] = number;
+        retries[slot] = 0;
+        sendTimes[slot] = sendTime;
+        firstSendTimes[slot] = sendTime;
+        sacked[slot] = false;
+        fastResent[slot] = false;
+        packets[slot] = packet;
+        return slot;
+    }
+
+    // 最早的未确认包的槽位，窗口为空时返回-1
+    public int oldest() {
+        return isEmpty() ? -1 : head & mask;
+    }
+
+    // 移除最早的包，返回其报文以便归还对象池
+    public Packet removeOldest() {
+        int slot = head++ & mask;
+        Packet packet = packets[slot];
+        packets[slot] = null;
+        return packet;
+    }
+
+    // 第i个（从最早的包起算）未确认包的槽位
+    public int slot(int i) {
+        return (head + i) & mask;
+    }
+
+    // 二分查找包含字节seq的包，返回其序号i（从最早的包起算），不在窗口内时返回-1
+    public int find(long seq) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int slot = slot(middle);
+            if (seq < seqs[slot]) {
+                high = middle - 1;
+            } else if (seq >= seqs[slot] + lengths[slot]) {
+                low = middle + 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    public int size() { return tail - head; }
+    public boolean isEmpty() { return head == tail; }
+    public boolean isFull() { return size() == packets.length; }
+    public int capacity() { return packets.length; }
+
+    public long seq(int slot) { return seqs[slot]; }
+    public int length(int slot) { return lengths[slot]; }
+    public long end(int slot) { return seqs[slot] + lengths[slot]; }
+    public int number(int slot) { return numbers[slot]; }
+    public int retries(int slot) { return retries[slot]; }
+    public long sendTime(int slot) { return sendTimes[slot]; }
+    public long firstSendTime(int slot) { return firstSendTimes[slot]; }
+    public boolean isSacked(int slot) { return sacked[slot]; }
+    public boolean isFastResent(int slot) { return fastResent[slot]; }
+    public Packet packet(int slot) { return packets[slot]; }
+
+    // 记录一次重传
+    public void resent(int slot, long sendTime) {
+        sendTimes[slot] = sendTime;
+        retries[slot]++;
+    }
+
+    // 记录一次窗口探测：包因超出接收窗口被丢弃后重发，不计入重传次数
+    public void probed(int slot, long sendTime) {
+        sendTimes[slot] = sendTime;
+    }
+
+    // 接收方通过SACK块确认收到，等待累积确认即可，不再重传
+    public void sack(int slot) {
+        sacked[slot] = true;
+    }
+
+    // 记录一次快速重传，每个包只快速重传一次，之后再丢失由超时重传处理
+    public void fastResent(int slot, long sendTime) {
+        resent(slot, sendTime);
+        fastResent[slot] = true;
+    }
+
+    // 达到最大重传次数后不再重传
+    public void abandon(int slot) {
+        retries[slot] = -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+// 哈希时间轮：定时器以整数编号标识（客户端使用发送窗口的槽位），按到期的格散列到环形的桶中。
+// 桶内是用数组实现的双向链表，启动和取消都是O(1)；推进时只检查经过的桶，只触发已经到期的定时器，
+// 到期时刻超过一圈的定时器留在桶中等待后续轮次
+public class TimerWheel {
+    private static final int NONE = -1;
+
+    private final long tickMillis;  // 每格的时长(ms)
+    private final int mask;
+    private final int[] heads;      // 每个桶的链表头
+    private final int[] next;
+    private final int[] prev;
+    private final int[] buckets;    // 定时器所在的桶，NONE表示未启动
+    private final long[] ticks;     // 到期的格
+    private long current;           // 下一个要检查的格
+    private int size;               // 已启动的定时器数
+
+    public TimerWheel(int capacity, int wheelSize, long tickMillis, long now) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.heads = new int[size];
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        this.buckets = new int[capacity];
+        this.ticks = new long[capacity];
+        Arrays.fill(heads, NONE);
+        Arrays.fill(buckets, NONE);
+        this.current = now / tickMillis;
+    }
+
+    // 启动（或重新启动）定时器，到期时刻向上取整到格，保证不会提前触发
+    public void schedule(int id, long deadline) {
+        cancel(id);
+        long tick = Math.max(current, (deadline + tickMillis - 1) / tickMillis);
+        int bucket = (int) (tick & mask);
+        ticks[id] = tick;
+        buckets[id] = bucket;
+        prev[id] = NONE;
+        next[id] = heads[bucket];
+        if (heads[bucket] != NONE) {
+            prev[heads[bucket]] = id;
+        }
+        heads[bucket] = id;
+        size++;
+    }
+
+    public void cancel(int id) {
+        int bucket = buckets[id];
+        if (bucket == NONE) {
+            return;
+        }
+        if (prev[id] != NONE) {
+            next[prev[id]] = next[id];
+        } else {
+            heads[bucket] = next[id];
+        }
+        if (next[id] != NONE) {
+            prev[next[id]] = prev[id];
+        }
+        buckets[id] = NONE;
+        size--;
+    }
+
+    public boolean isScheduled(int id) {
+        return buckets[id] != NONE;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // 最早可能到期的时刻(ms)，不晚于真实的最早到期时刻，没有定时器时返回-1。
+    // 从当前格起最多检查一圈，返回第一个非空桶的时刻，桶中的定时器可能属于后面的轮次，届时推进后再次查询即可
+    public long nextExpiry() {
+        if (size == 0) {
+            return -1;
+        }
+        for (long tick = current; tick < current + heads.length; tick++) {
+            if (heads[(int) (tick & mask)] != NONE) {
+                return tick * tickMillis;
+            }
+        }
+        return -1;
+    }
+
+    // 推进到now，对每个到期的定时器调用expired；回调中只能重新启动或取消被触发的这个定时器
+    public void advance(long now, IntConsumer expired) {
+        long target = now / tickMillis;
+        // 落后超过一圈时每个桶只需检查一次
+        long end = Math.min(target, current + mask);
+        for (long tick = current; tick <= end; tick++) {
+            int id = heads[(int) (tick & mask)];
+            while (id != NONE) {
+                int following = next[id];
+                if (ticks[id] <= target) {
+                    cancel(id);
+                    expired.accept(id);
+                }
+                id = following;
+            }
+        }
+        current = Math.max(current, target + 1);
+    }
+}
\ No newline at end of file